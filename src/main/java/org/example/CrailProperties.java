@@ -0,0 +1,60 @@
+package org.example;
+
+import java.util.Properties;
+
+import org.apache.crail.CrailBufferedInputStream;
+import org.apache.crail.CrailBufferedOutputStream;
+import org.apache.crail.CrailFile;
+import org.apache.crail.CrailLocationClass;
+import org.apache.crail.CrailNode;
+import org.apache.crail.CrailNodeType;
+import org.apache.crail.CrailStorageClass;
+import org.apache.crail.CrailStore;
+
+/**
+ * Small helper to keep a {@link Properties} set in a Crail file.
+ * <p>
+ * Actions cannot receive arguments on creation, so clients store their
+ * configuration next to the action and the action loads it on
+ * <code>onCreate</code>.
+ */
+public class CrailProperties {
+
+  private CrailProperties() {
+  }
+
+  /**
+   * Write <code>props</code> to a new Crail file at <code>path</code>.
+   *
+   * @param store Crail store to use.
+   * @param path  Path of the file to create.
+   * @param props Properties to save.
+   */
+  public static void store(CrailStore store, String path, Properties props) throws Exception {
+    CrailFile file = store.create(path, CrailNodeType.DATAFILE, CrailStorageClass.get(1),
+                                  CrailLocationClass.DEFAULT, false).get().asFile();
+    CrailBufferedOutputStream cbos = file.getBufferedOutputStream(0);
+    props.store(cbos, null);
+    cbos.close();
+  }
+
+  /**
+   * Read the properties saved at <code>path</code>.
+   *
+   * @param store Crail store to use.
+   * @param path  Path of the file to read.
+   * @return The properties, or <code>null</code> if the file does not exist.
+   */
+  public static Properties load(CrailStore store, String path) throws Exception {
+    CrailNode node = store.lookup(path).get();
+    if (node == null) {
+      return null;
+    }
+    CrailFile file = node.asFile();
+    Properties props = new Properties();
+    CrailBufferedInputStream cbis = file.getBufferedInputStream(file.getCapacity());
+    props.load(cbis);
+    cbis.close();
+    return props;
+  }
+}
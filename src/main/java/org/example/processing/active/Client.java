@@ -1,8 +1,6 @@
 package org.example.processing.active;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
@@ -16,7 +14,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
 
 import org.apache.crail.CrailBufferedOutputStream;
 import org.apache.crail.CrailFile;
@@ -28,6 +25,7 @@ import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
 import org.apache.crail.conf.CrailConfiguration;
 import org.apache.crail.core.ActiveReadableChannel;
+import org.example.wordcount.WordTokenizer;
 
 public class Client {
   private static int N_WORKERS = 10;
@@ -163,14 +161,9 @@ public class Client {
         ActiveReadableChannel readChannel = filterProxy.getReadableChannel();
 
         long time1 = System.currentTimeMillis();
-        Stream<String> filteredLines = new BufferedReader(new InputStreamReader(Channels.newInputStream(readChannel)))
-            .lines();
-
         // Count words
-        long nWords = filteredLines
-            .flatMap(line -> Stream.of(line.toLowerCase().split("\\W+"))
-                .filter(w -> !w.isEmpty()))
-            .count();
+        long nWords = new WordTokenizer(Channels.newInputStream(readChannel)).forEachWord((buffer, offset, length) -> {
+        });
         long time2 = System.currentTimeMillis();
         double elapsed = (double) (time2 - time1) / 1000.0;
 
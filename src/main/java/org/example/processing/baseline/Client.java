@@ -1,8 +1,6 @@
 package org.example.processing.baseline;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
@@ -15,7 +13,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
 
 import org.apache.crail.CrailBufferedInputStream;
 import org.apache.crail.CrailBufferedOutputStream;
@@ -26,11 +23,14 @@ import org.apache.crail.CrailNodeType;
 import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
 import org.apache.crail.conf.CrailConfiguration;
+import org.example.wordcount.BytePattern;
+import org.example.wordcount.WordTokenizer;
 
 public class Client {
   private static int N_WORKERS = 10;
   private static String FILE_FORM = "/tmp/daniel-data/wiki1G/AA/wiki_%02d";
   private static String CRAIL_FORM = "/wiki_%02d";
+  private static final BytePattern FILTER_WORD = new BytePattern("cosmos");
 
   private static void sendFileToCrail(String filename, CrailFile crailFile) {
     Path path = Paths.get(filename);
@@ -142,19 +142,18 @@ public class Client {
         CrailBufferedInputStream cbis = crailFile.getBufferedInputStream(crailFile.getCapacity());
 
         long time1 = System.currentTimeMillis();
-        // Filter data
-        Stream<String> lines = new BufferedReader(new InputStreamReader(cbis)).lines();
-        Stream<String> filteredLines = lines.filter(l -> l.contains("cosmos"));
-
-        // Count words
-        long nWords = filteredLines
-            .flatMap(line -> Stream.of(line.toLowerCase().split("\\W+"))
-                .filter(w -> !w.isEmpty()))
-            .count();
+        // Filter data and count words
+        long[] nWords = {0};
+        new WordTokenizer(cbis).forEachLine((buffer, offset, length) -> {
+          if (FILTER_WORD.indexOf(buffer, offset, offset + length) >= 0) {
+            nWords[0] += WordTokenizer.tokenize(buffer, offset, offset + length, (b, o, l) -> {
+            });
+          }
+        });
         long time2 = System.currentTimeMillis();
         double elapsed = (double)(time2 - time1) / 1000.0;
 
-        System.out.println("Worker " + workerId + " counted " + nWords + " words.");
+        System.out.println("Worker " + workerId + " counted " + nWords[0] + " words.");
         System.out.println("Processed " + crailFile.getCapacity() + " bytes in " + elapsed + " s = "
             + (crailFile.getCapacity() * 8 / elapsed / 1000 / 1000) + " Mbps");
 
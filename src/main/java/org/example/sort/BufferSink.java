@@ -0,0 +1,14 @@
+package org.example.sort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for the sorted rows, fed with (possibly direct) buffers.
+ * Both <code>CrailBufferedOutputStream::write</code> and
+ * <code>WritableByteChannel::write</code> fit.
+ */
+@FunctionalInterface
+public interface BufferSink {
+  void write(ByteBuffer buffer) throws IOException;
+}
@@ -1,9 +1,15 @@
 package org.example.sort;
 
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Random;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.crail.CrailBufferedOutputStream;
 import org.apache.crail.CrailFile;
@@ -12,27 +18,42 @@ import org.apache.crail.CrailNodeType;
 import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
 
+/**
+ * Generates one partition file of random rows, with keys following the
+ * {@link KeyDistribution} of the configuration.
+ * <p>
+ * Rows are generated in chunks by {@link RowGenerator}s into reused direct
+ * buffers. With several threads, chunks are generated in parallel and
+ * written in order, keeping a bounded window of chunks in flight. The file
+ * content only depends on the seed. The checksum of the generated rows is
+ * available once the partition is written, to validate the sort output.
+ */
 public class GenPartition implements Runnable {
+  private static final int CHUNK_ROWS = 16 * 1024;
+
   private CrailStore store;
   private String filename;
-  private Random random;
+  private long seed;
   private int rows;
-  private int columns;
+  private SortConf conf;
+  private int threads;
+  private final AtomicLong checksum = new AtomicLong();
 
-  public GenPartition(CrailStore store, String filename, int rows, int columns) {
-    this.store = store;
-    this.filename = filename;
-    this.rows = rows;
-    this.columns = columns;
-    this.random = new Random();
+  public GenPartition(CrailStore store, String filename, int rows, SortConf conf) {
+    this(store, filename, rows, conf, new Random().nextLong(), 1);
   }
 
-  public GenPartition(CrailStore store, String filename, int rows, int columns, long seed) {
+  public GenPartition(CrailStore store, String filename, int rows, SortConf conf, long seed) {
+    this(store, filename, rows, conf, seed, 1);
+  }
+
+  public GenPartition(CrailStore store, String filename, int rows, SortConf conf, long seed, int threads) {
     this.store = store;
     this.filename = filename;
     this.rows = rows;
-    this.columns = columns;
-    this.random = new Random(seed);
+    this.conf = conf;
+    this.seed = seed;
+    this.threads = threads;
   }
 
   @Override
@@ -42,13 +63,19 @@ public class GenPartition implements Runnable {
           CrailLocationClass.DEFAULT, false).get().asFile();
 
       CrailBufferedOutputStream cbos = crailFile.getBufferedOutputStream(0);
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(cbos));
-      for (int r = 0; r < rows; r++) {
-        String row = random.ints(columns).mapToObj(String::valueOf).collect(Collectors.joining(","));
-        writer.write(row);
-        writer.newLine();
+      int chunks = (rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+      int chunkBytes = CHUNK_ROWS * RowGenerator.maxRowBytes(conf);
+      if (threads <= 1) {
+        RowGenerator generator = new RowGenerator(conf, seed, rows);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkBytes);
+        for (int c = 0; c < chunks; c++) {
+          checksum.addAndGet(generator.fill(buffer, c, (long) c * CHUNK_ROWS, chunkRows(c)));
+          write(buffer, cbos);
+        }
+      } else {
+        generateParallel(cbos, chunks, chunkBytes);
       }
-      writer.close();
+      cbos.close();
 
       System.out.println("Generated file " + filename + " of size " + crailFile.getCapacity());
 
@@ -56,4 +83,68 @@ public class GenPartition implements Runnable {
       e.printStackTrace();
     }
   }
+
+  private void generateParallel(CrailBufferedOutputStream cbos, int chunks, int chunkBytes) throws Exception {
+    ExecutorService es = Executors.newFixedThreadPool(threads);
+    try {
+      generateChunks(es, cbos, chunks, chunkBytes);
+    } finally {
+      // also when a chunk fails, so no generator thread is left running
+      es.shutdownNow();
+      es.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  private void generateChunks(ExecutorService es, CrailBufferedOutputStream cbos, int chunks, int chunkBytes)
+      throws Exception {
+    ThreadLocal<RowGenerator> generators = ThreadLocal.withInitial(() -> new RowGenerator(conf, seed, rows));
+    // two chunks per thread: one being generated, one waiting to be written
+    int window = 2 * threads;
+    ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    for (int i = 0; i < window; i++) {
+      free.add(ByteBuffer.allocateDirect(chunkBytes));
+    }
+
+    Deque<Future<ByteBuffer>> pending = new ArrayDeque<>(window);
+    int next = 0;
+    while (next < chunks && pending.size() < window) {
+      pending.add(submit(es, generators, free, next++));
+    }
+    while (!pending.isEmpty()) {
+      ByteBuffer buffer = pending.poll().get();
+      write(buffer, cbos);
+      free.add(buffer);
+      if (next < chunks) {
+        pending.add(submit(es, generators, free, next++));
+      }
+    }
+  }
+
+  private Future<ByteBuffer> submit(ExecutorService es, ThreadLocal<RowGenerator> generators,
+      ConcurrentLinkedQueue<ByteBuffer> free, int chunk) {
+    ByteBuffer buffer = free.poll();
+    return es.submit(() -> {
+      checksum.addAndGet(generators.get().fill(buffer, chunk, (long) chunk * CHUNK_ROWS, chunkRows(chunk)));
+      return buffer;
+    });
+  }
+
+  /**
+   * @return Sum of the hashes of the generated rows.
+   */
+  public long getChecksum() {
+    return checksum.get();
+  }
+
+  private int chunkRows(int chunk) {
+    return Math.min(CHUNK_ROWS, rows - chunk * CHUNK_ROWS);
+  }
+
+  private static void write(ByteBuffer buffer, CrailBufferedOutputStream cbos) throws Exception {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      cbos.write(buffer);
+    }
+    buffer.clear();
+  }
 }
@@ -0,0 +1,44 @@
+package org.example.sort;
+
+/**
+ * Distribution of the sort keys written by the generator. The other columns
+ * are always uniformly random.
+ */
+public enum KeyDistribution {
+  /** Uniform over the whole int range. */
+  UNIFORM(0),
+  /** Zipf over {@link #ZIPF_RANKS} keys with the given exponent. */
+  ZIPF(1.0),
+  /** Normal around 0 with the given standard deviation, as a fraction of 2^31. */
+  NORMAL(0.1),
+  /** Increasing over the rows of each partition. */
+  SORTED(0),
+  /** Decreasing over the rows of each partition. */
+  REVERSE(0),
+  /** Uniform over the given number of distinct keys. */
+  FEW(16);
+
+  /** Number of distinct keys drawn by {@link #ZIPF}. */
+  public static final int ZIPF_RANKS = 1 << 24;
+
+  private final double defaultParameter;
+
+  KeyDistribution(double defaultParameter) {
+    this.defaultParameter = defaultParameter;
+  }
+
+  public double getDefaultParameter() {
+    return defaultParameter;
+  }
+
+  /**
+   * Parse <code>name[:parameter]</code>, e.g. <code>zipf:1.2</code> or
+   * <code>few:100</code>, into <code>conf</code>.
+   */
+  public static void parse(String spec, SortConf conf) {
+    String[] parts = spec.split(":", 2);
+    KeyDistribution distribution = valueOf(parts[0].trim().toUpperCase());
+    double parameter = parts.length > 1 ? Double.parseDouble(parts[1]) : distribution.defaultParameter;
+    conf.setKeyDistribution(distribution, parameter);
+  }
+}
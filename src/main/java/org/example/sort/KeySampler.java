@@ -0,0 +1,61 @@
+package org.example.sort;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.apache.crail.CrailBufferedInputStream;
+import org.apache.crail.CrailFile;
+import org.apache.crail.CrailStore;
+
+/**
+ * Reads the keys of rows spread evenly over a partition file, seeking to
+ * each one instead of scanning the whole file.
+ */
+public class KeySampler implements Callable<int[]> {
+  private final CrailStore store;
+  private final String filename;
+  private final SortConf conf;
+  private final int samples;
+
+  public KeySampler(CrailStore store, String filename, SortConf conf, int samples) {
+    this.store = store;
+    this.filename = filename;
+    this.conf = conf;
+    this.samples = samples;
+  }
+
+  @Override
+  public int[] call() throws Exception {
+    CrailFile file = store.lookup(filename).get().asFile();
+    long capacity = file.getCapacity();
+    int[] keys = new int[samples];
+    int taken = 0;
+    if (capacity == 0) {
+      return keys;
+    }
+
+    CrailBufferedInputStream cbis = file.getBufferedInputStream(8 * 1024);
+    int rowWidth = conf.rowWidth();
+    for (int i = 0; i < samples; i++) {
+      long pos = capacity * i / samples;
+      if (conf.getFormat() == RowFormat.BINARY) {
+        cbis.seek(pos - pos % rowWidth);
+      } else if (pos > 0) {
+        // skip to the first row starting at or after pos
+        cbis.seek(pos - 1);
+        int b = cbis.read();
+        while (b != -1 && b != '\n') {
+          b = cbis.read();
+        }
+      } else {
+        cbis.seek(0);
+      }
+      RowReader reader = new RowReader(cbis, conf, 256);
+      if (reader.next()) {
+        keys[taken++] = reader.key();
+      }
+    }
+    cbis.close();
+    return taken == samples ? keys : Arrays.copyOf(keys, taken);
+  }
+}
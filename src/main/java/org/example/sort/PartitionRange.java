@@ -0,0 +1,75 @@
+package org.example.sort;
+
+import org.apache.crail.CrailBufferedInputStream;
+import org.apache.crail.CrailFile;
+
+/**
+ * Splits a partition file into byte ranges that can be mapped in parallel.
+ * <p>
+ * A row belongs to the range it starts in. Binary ranges are aligned to the
+ * row width; a text range skips the tail of the row that started in the
+ * previous range, and its last row may end in the next one.
+ */
+public class PartitionRange {
+  private final long start;
+  private final long end;
+
+  public PartitionRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * Split <code>capacity</code> bytes of rows into <code>ranges</code> ranges
+   * of about the same size.
+   */
+  public static PartitionRange[] split(long capacity, SortConf conf, int ranges) {
+    int rowWidth = conf.rowWidth();
+    PartitionRange[] split = new PartitionRange[ranges];
+    long start = 0;
+    for (int i = 0; i < ranges; i++) {
+      long end = i == ranges - 1 ? capacity : capacity * (i + 1) / ranges;
+      if (rowWidth > 0) {
+        end -= end % rowWidth;
+      }
+      split[i] = new PartitionRange(start, end);
+      start = end;
+    }
+    return split;
+  }
+
+  /**
+   * Open a reader over the rows starting in this range of <code>file</code>.
+   */
+  public RowReader open(CrailFile file, SortConf conf) throws Exception {
+    CrailBufferedInputStream cbis = file.getBufferedInputStream(end - start);
+    long first = start;
+    if (start > 0 && conf.getFormat() == RowFormat.TEXT) {
+      // skip to the first row starting at or after start
+      cbis.seek(start - 1);
+      int b = cbis.read();
+      while (b != -1 && b != '\n') {
+        b = cbis.read();
+        first++;
+      }
+    } else {
+      cbis.seek(start);
+    }
+    RowReader reader = new RowReader(cbis, conf);
+    reader.setLimit(end - first);
+    return reader;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + start + ", " + end + ")";
+  }
+}
@@ -0,0 +1,28 @@
+package org.example.sort;
+
+/**
+ * Phases timed by the mappers and reducers of a sort job.
+ */
+public enum Phase {
+  /** Reading the input partition. */
+  READ,
+  /** Reducers: parsing the keys of the received rows and buffering them. */
+  PARSE,
+  /** Mappers: parsing the keys of the input rows and bucketing them by group. */
+  PARTITION,
+  /** Mappers: sending rows to the groups, including waits for the receivers. */
+  SEND,
+  /** Reducers: reading the rows sent by the mappers. */
+  RECEIVE,
+  /** Sorting buffered rows. */
+  SORT,
+  /** Writing sorted rows: spills, merges and the result. */
+  WRITE;
+
+  /**
+   * @return Name used in reports.
+   */
+  public String label() {
+    return name().toLowerCase();
+  }
+}
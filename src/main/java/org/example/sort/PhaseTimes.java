@@ -0,0 +1,46 @@
+package org.example.sort;
+
+import java.util.Properties;
+
+/**
+ * Nanoseconds spent in each {@link Phase} by one mapper or reducer, summed
+ * over its threads. Times are added per buffer or per stream, not per row.
+ * Thread-safe.
+ */
+public class PhaseTimes {
+  private final long[] nanos = new long[Phase.values().length];
+
+  public synchronized void add(Phase phase, long nanos) {
+    this.nanos[phase.ordinal()] += nanos;
+  }
+
+  public synchronized void addAll(PhaseTimes other) {
+    for (Phase phase : Phase.values()) {
+      nanos[phase.ordinal()] += other.get(phase);
+    }
+  }
+
+  public synchronized long get(Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+
+  /**
+   * @return The times as properties named after the phases, e.g. to keep them
+   *         in a Crail file.
+   */
+  public synchronized Properties toProperties() {
+    Properties props = new Properties();
+    for (Phase phase : Phase.values()) {
+      props.setProperty(phase.label(), Long.toString(nanos[phase.ordinal()]));
+    }
+    return props;
+  }
+
+  public static PhaseTimes fromProperties(Properties props) {
+    PhaseTimes times = new PhaseTimes();
+    for (Phase phase : Phase.values()) {
+      times.add(phase, Long.parseLong(props.getProperty(phase.label(), "0")));
+    }
+    return times;
+  }
+}
@@ -0,0 +1,150 @@
+package org.example.sort;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Parallel LSD radix sort of packed <code>(key &lt;&lt; 32 | offset)</code>
+ * entries, as built by {@link SortBuffer}.
+ * <p>
+ * Entries are ordered by the signed key in their high 32 bits, one byte per
+ * pass. Each pass splits the array into blocks: the blocks are counted in
+ * parallel, the counts are turned into per-block bucket offsets, and the
+ * blocks are scattered in parallel. The sort is stable, so entries with the
+ * same key keep their order. Passes where all entries share the same digit
+ * are skipped, which is common once rows have been range partitioned.
+ */
+public final class RadixSort {
+  private static final int BITS = 8;
+  private static final int BUCKETS = 1 << BITS;
+  private static final int PASSES = Integer.SIZE / BITS;
+  // entries per block, below this the pass runs on the calling thread
+  private static final int MIN_BLOCK = 1 << 16;
+
+  private RadixSort() {
+  }
+
+  public static void sort(long[] entries, int from, int to) {
+    sort(entries, from, to, ForkJoinPool.commonPool());
+  }
+
+  public static void sort(long[] entries, int from, int to, ForkJoinPool pool) {
+    int n = to - from;
+    if (n < 2) {
+      return;
+    }
+    int blocks = (int) Math.max(1, Math.min((long) pool.getParallelism() * 4, n / MIN_BLOCK));
+    int blockSize = (n + blocks - 1) / blocks;
+    blocks = (n + blockSize - 1) / blockSize;
+    int[][] counts = new int[blocks][BUCKETS];
+
+    long[] src = entries;
+    int srcFrom = from;
+    long[] dst = new long[n];
+    int dstFrom = 0;
+
+    for (int pass = 0; pass < PASSES; pass++) {
+      int shift = Integer.SIZE + pass * BITS;
+      // flip the sign bit so negative keys come first
+      int flip = pass == PASSES - 1 ? BUCKETS >> 1 : 0;
+      long[] in = src;
+      int inFrom = srcFrom;
+
+      run(pool, blocks, block -> {
+        int[] count = counts[block];
+        Arrays.fill(count, 0);
+        int start = inFrom + block * blockSize;
+        int end = Math.min(start + blockSize, inFrom + n);
+        for (int i = start; i < end; i++) {
+          count[((int) (in[i] >>> shift) & (BUCKETS - 1)) ^ flip]++;
+        }
+      });
+      if (!toOffsets(counts, n)) {
+        continue;
+      }
+
+      long[] out = dst;
+      int outFrom = dstFrom;
+      run(pool, blocks, block -> {
+        int[] offset = counts[block];
+        int start = inFrom + block * blockSize;
+        int end = Math.min(start + blockSize, inFrom + n);
+        for (int i = start; i < end; i++) {
+          long entry = in[i];
+          out[outFrom + offset[((int) (entry >>> shift) & (BUCKETS - 1)) ^ flip]++] = entry;
+        }
+      });
+
+      long[] swap = src;
+      src = dst;
+      dst = swap;
+      int swapFrom = srcFrom;
+      srcFrom = dstFrom;
+      dstFrom = swapFrom;
+    }
+
+    if (src != entries) {
+      System.arraycopy(src, srcFrom, entries, from, n);
+    }
+  }
+
+  /**
+   * Replace the per-block digit counts by the position where each block
+   * writes its first entry of each digit.
+   *
+   * @return false if all entries have the same digit and the pass can be
+   *         skipped.
+   */
+  private static boolean toOffsets(int[][] counts, int n) {
+    int position = 0;
+    for (int digit = 0; digit < BUCKETS; digit++) {
+      int total = 0;
+      for (int[] count : counts) {
+        total += count[digit];
+      }
+      if (total == n) {
+        return false;
+      }
+      for (int[] count : counts) {
+        int c = count[digit];
+        count[digit] = position;
+        position += c;
+      }
+    }
+    return true;
+  }
+
+  private static void run(ForkJoinPool pool, int blocks, IntConsumer body) {
+    if (blocks == 1) {
+      body.accept(0);
+    } else {
+      pool.invoke(new BlockTask(0, blocks, body));
+    }
+  }
+
+  private static class BlockTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final IntConsumer body;
+
+    BlockTask(int from, int to, IntConsumer body) {
+      this.from = from;
+      this.to = to;
+      this.body = body;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        body.accept(from);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new BlockTask(from, middle, body), new BlockTask(middle, to, body));
+    }
+  }
+}
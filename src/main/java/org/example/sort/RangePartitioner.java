@@ -0,0 +1,79 @@
+package org.example.sort;
+
+import java.util.Arrays;
+
+/**
+ * Assigns sort keys to reduce groups by key ranges.
+ * <p>
+ * Group <code>i</code> receives the keys in
+ * <code>[splits[i - 1], splits[i])</code>, so the concatenation of the sorted
+ * groups is globally sorted.
+ */
+public class RangePartitioner {
+  private final int[] splits;
+
+  private RangePartitioner(int[] splits) {
+    this.splits = splits;
+  }
+
+  /**
+   * Cut the full int range into <code>groups</code> equal slices.
+   */
+  public static RangePartitioner uniform(int groups) {
+    int[] splits = new int[groups - 1];
+    long groupLength = ((long) Integer.MAX_VALUE - Integer.MIN_VALUE) / groups;
+    long currLimit = Integer.MIN_VALUE;
+    for (int i = 0; i < splits.length; i++) {
+      currLimit += groupLength;
+      splits[i] = (int) currLimit;
+    }
+    return new RangePartitioner(splits);
+  }
+
+  /**
+   * Use the quantiles of a key sample as split points, so each group gets
+   * about the same number of rows whatever the key distribution.
+   *
+   * @param samples Sampled keys (sorted in place).
+   * @param groups  Number of groups.
+   */
+  public static RangePartitioner fromSamples(int[] samples, int groups) {
+    if (samples.length == 0) {
+      return uniform(groups);
+    }
+    Arrays.sort(samples);
+    int[] splits = new int[groups - 1];
+    for (int i = 0; i < splits.length; i++) {
+      splits[i] = samples[(int) ((long) (i + 1) * samples.length / groups)];
+    }
+    return new RangePartitioner(splits);
+  }
+
+  public int getGroup(int key) {
+    // number of split points <= key
+    int low = 0;
+    int high = splits.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (splits[mid] <= key) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  public int groups() {
+    return splits.length + 1;
+  }
+
+  public int[] getSplits() {
+    return splits.clone();
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(splits);
+  }
+}
@@ -0,0 +1,153 @@
+package org.example.sort;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Row count, key range, order check and checksum of one sorted result (a
+ * file or a stream from a reducer).
+ * <p>
+ * The checksum is the sum of the hashes of all rows, so it does not depend on
+ * the row order: the sum over all results must match the checksum of the
+ * generated input, which catches lost, duplicated or corrupted rows.
+ */
+public class ResultSummary {
+  private long rows;
+  private int firstKey;
+  private int lastKey;
+  // index of the first row with a smaller key than the previous one, or -1
+  private long unsortedRow = -1;
+  private long duplicateKeys;
+  private long checksum;
+
+  /**
+   * Read all rows of <code>reader</code> and close it.
+   */
+  public static ResultSummary read(RowReader reader) throws IOException {
+    ResultSummary summary = new ResultSummary();
+    try {
+      while (reader.next()) {
+        int key = reader.key();
+        if (summary.rows == 0) {
+          summary.firstKey = key;
+        } else if (key < summary.lastKey) {
+          if (summary.unsortedRow < 0) {
+            summary.unsortedRow = summary.rows;
+          }
+        } else if (key == summary.lastKey) {
+          summary.duplicateKeys++;
+        }
+        summary.lastKey = key;
+        summary.checksum += rowHash(reader.buffer(), reader.offset(), reader.length());
+        summary.rows++;
+      }
+    } finally {
+      reader.close();
+    }
+    return summary;
+  }
+
+  /**
+   * 64-bit hash of one row (FNV-1a, then mixed).
+   */
+  public static long rowHash(byte[] row, int offset, int length) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = offset; i < offset + length; i++) {
+      hash = (hash ^ row[i]) * 0x100000001b3L;
+    }
+    hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+    return hash ^ (hash >>> 33);
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  public int getFirstKey() {
+    return firstKey;
+  }
+
+  public int getLastKey() {
+    return lastKey;
+  }
+
+  public boolean isSorted() {
+    return unsortedRow < 0;
+  }
+
+  public long getUnsortedRow() {
+    return unsortedRow;
+  }
+
+  public long getDuplicateKeys() {
+    return duplicateKeys;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * @return true if no row of this result has a larger key than the rows of
+   *         <code>next</code>.
+   */
+  public boolean precedes(ResultSummary next) {
+    return rows == 0 || next.rows == 0 || lastKey <= next.firstKey;
+  }
+
+  /**
+   * Check the summaries of consecutive results and print a report.
+   *
+   * @param results          Summaries in key order of the results.
+   * @param expectedRows     Rows of the input.
+   * @param expectedChecksum Checksum of the input, or null if unknown.
+   * @return true if all results are sorted, in order, and hold the input rows.
+   */
+  public static boolean validate(List<ResultSummary> results, long expectedRows, Long expectedChecksum) {
+    boolean ok = true;
+    long rows = 0;
+    long duplicates = 0;
+    long checksum = 0;
+    ResultSummary previous = null;
+    for (int i = 0; i < results.size(); i++) {
+      ResultSummary summary = results.get(i);
+      if (!summary.isSorted()) {
+        System.out.println("Result " + i + " not sorted at row " + summary.getUnsortedRow());
+        ok = false;
+      }
+      if (previous != null && !previous.precedes(summary)) {
+        System.out.println("Result " + i + " starts with key " + summary.getFirstKey()
+            + " before the previous result ends with " + previous.getLastKey());
+        ok = false;
+      }
+      if (summary.getRows() > 0) {
+        if (previous != null && previous.getLastKey() == summary.getFirstKey()) {
+          duplicates++;
+        }
+        previous = summary;
+      }
+      rows += summary.getRows();
+      duplicates += summary.getDuplicateKeys();
+      checksum += summary.getChecksum();
+    }
+    System.out.println(ok ? "Sort OK!!" : "Not sorted!!");
+    System.out.println(String.format("Records: %d (expected %d) %s", rows, expectedRows,
+        rows == expectedRows ? "OK" : "KO"));
+    System.out.println(String.format("Duplicate keys: %d", duplicates));
+    if (expectedChecksum == null) {
+      System.out.println(String.format("Checksum: %016x (input checksum unknown)", checksum));
+    } else {
+      System.out.println(String.format("Checksum: %016x (expected %016x) %s", checksum, expectedChecksum,
+          checksum == expectedChecksum ? "OK" : "KO"));
+    }
+    return ok && rows == expectedRows && (expectedChecksum == null || checksum == expectedChecksum);
+  }
+
+  @Override
+  public String toString() {
+    if (rows == 0) {
+      return "0 rows";
+    }
+    return rows + " rows, keys " + firstKey + " to " + lastKey + (isSorted() ? "" : ", not sorted at row " + unsortedRow);
+  }
+}
@@ -0,0 +1,22 @@
+package org.example.sort;
+
+/**
+ * Layout of the rows handled by the sort jobs.
+ * <ul>
+ *   <li> <code>TEXT</code>: comma-separated integers, one row per line.
+ *   <li> <code>BINARY</code>: fixed-width rows of big-endian 4-byte integers,
+ *   so the key is always at <code>columnKey * 4</code>.
+ * </ul>
+ */
+public enum RowFormat {
+  TEXT,
+  BINARY;
+
+  /**
+   * @param columns Number of columns per row.
+   * @return Size in bytes of a binary row, or -1 for variable-length formats.
+   */
+  public int rowWidth(int columns) {
+    return this == BINARY ? columns * Integer.BYTES : -1;
+  }
+}
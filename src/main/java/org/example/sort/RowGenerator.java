@@ -0,0 +1,211 @@
+package org.example.sort;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Generates chunks of random rows straight into a byte buffer, without
+ * creating objects per row.
+ * <p>
+ * Every chunk draws from its own SplitMix64 sequence seeded from the
+ * partition seed and the chunk index, so a partition is the same whatever
+ * the number of threads generating it. Text integers are formatted by hand
+ * into a reused row buffer. The key column follows the configured
+ * {@link KeyDistribution}. Not thread-safe: use one generator per thread.
+ */
+public class RowGenerator {
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final byte[] MIN_INT = Integer.toString(Integer.MIN_VALUE).getBytes();
+
+  private final RowFormat format;
+  private final int columns;
+  private final int columnKey;
+  private final KeyDistribution distribution;
+  private final double parameter;
+  private final long totalRows;
+  private final long seed;
+  private final byte[] row;
+  private long state;
+
+  // rejection-inversion constants for ZIPF
+  private double hIntegralX1;
+  private double hIntegralN;
+  private double zipfS;
+
+  /**
+   * @param totalRows Rows of the whole partition, for sorted keys.
+   */
+  public RowGenerator(SortConf conf, long seed, long totalRows) {
+    this.format = conf.getFormat();
+    this.columns = conf.getColumns();
+    this.columnKey = conf.getColumnKey();
+    this.distribution = conf.getKeyDistribution();
+    this.parameter = conf.getDistributionParameter();
+    this.totalRows = Math.max(1, totalRows);
+    this.seed = seed;
+    this.row = new byte[maxRowBytes(conf)];
+    if (distribution == KeyDistribution.ZIPF) {
+      hIntegralX1 = hIntegral(1.5) - 1;
+      hIntegralN = hIntegral(KeyDistribution.ZIPF_RANKS + 0.5);
+      zipfS = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+  }
+
+  /**
+   * @return Upper bound of the size of one row.
+   */
+  public static int maxRowBytes(SortConf conf) {
+    if (conf.getFormat() == RowFormat.BINARY) {
+      return conf.rowWidth();
+    }
+    // "-2147483648" plus a separator per column
+    return conf.getColumns() * 12;
+  }
+
+  /**
+   * Append the <code>rows</code> rows of chunk <code>chunk</code>, starting
+   * at row <code>firstRow</code> of the partition, to <code>dst</code>, which
+   * must have room for them.
+   *
+   * @return Checksum of the rows, see {@link ResultSummary#rowHash}.
+   */
+  public long fill(ByteBuffer dst, long chunk, long firstRow, int rows) {
+    state = mix64(seed + chunk * GOLDEN_GAMMA);
+    long checksum = 0;
+    for (int r = 0; r < rows; r++) {
+      long rowIndex = firstRow + r;
+      int length;
+      if (format == RowFormat.BINARY) {
+        length = 0;
+        for (int c = 0; c < columns; c++) {
+          RowReader.writeInt(row, length, c == columnKey ? nextKey(rowIndex) : nextInt());
+          length += Integer.BYTES;
+        }
+      } else {
+        length = 0;
+        for (int c = 0; c < columns; c++) {
+          if (c > 0) {
+            row[length++] = ',';
+          }
+          length = formatInt(c == columnKey ? nextKey(rowIndex) : nextInt(), row, length);
+        }
+        row[length++] = '\n';
+      }
+      dst.put(row, 0, length);
+      checksum += ResultSummary.rowHash(row, 0, length);
+    }
+    return checksum;
+  }
+
+  private int nextInt() {
+    return (int) (mix64(state += GOLDEN_GAMMA) >>> 32);
+  }
+
+  /**
+   * @return Uniform double in [0, 1).
+   */
+  private double nextDouble() {
+    return (mix64(state += GOLDEN_GAMMA) >>> 11) * 0x1.0p-53;
+  }
+
+  private int nextKey(long rowIndex) {
+    switch (distribution) {
+    case ZIPF:
+      // scramble the ranks so the hot keys are spread over the key range, the
+      // same way in all partitions
+      return (int) mix64(nextZipfRank() * GOLDEN_GAMMA);
+    case NORMAL:
+      // Box-Muller, keeping one of the two values
+      double gaussian = Math.sqrt(-2 * Math.log(1 - nextDouble())) * Math.cos(2 * Math.PI * nextDouble());
+      double key = Math.rint(gaussian * parameter * 0x1.0p31);
+      return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, key));
+    case SORTED:
+      return (int) (Integer.MIN_VALUE + (rowIndex << 32) / totalRows);
+    case REVERSE:
+      return (int) (Integer.MAX_VALUE - (rowIndex << 32) / totalRows);
+    case FEW:
+      long distinct = Math.max(1, (long) parameter);
+      return (int) mix64((long) (nextDouble() * distinct) * GOLDEN_GAMMA);
+    default:
+      return nextInt();
+    }
+  }
+
+  /**
+   * Zipf rank in [1, ZIPF_RANKS] by rejection-inversion (Hormann and
+   * Derflinger).
+   */
+  private long nextZipfRank() {
+    while (true) {
+      double u = hIntegralN + nextDouble() * (hIntegralX1 - hIntegralN);
+      double x = hIntegralInverse(u);
+      long k = (long) (x + 0.5);
+      if (k < 1) {
+        k = 1;
+      } else if (k > KeyDistribution.ZIPF_RANKS) {
+        k = KeyDistribution.ZIPF_RANKS;
+      }
+      if (k - x <= zipfS || u >= hIntegral(k + 0.5) - h(k)) {
+        return k;
+      }
+    }
+  }
+
+  private double h(double x) {
+    return Math.exp(-parameter * Math.log(x));
+  }
+
+  private double hIntegral(double x) {
+    double logX = Math.log(x);
+    return helper2((1 - parameter) * logX) * logX;
+  }
+
+  private double hIntegralInverse(double x) {
+    double t = x * (1 - parameter);
+    if (t < -1) {
+      t = -1;
+    }
+    return Math.exp(helper1(t) * x);
+  }
+
+  // log1p(x) / x, accurate near 0
+  private static double helper1(double x) {
+    return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+  }
+
+  // expm1(x) / x, accurate near 0
+  private static double helper2(double x) {
+    return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+  }
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Write the decimal digits of <code>value</code> at <code>pos</code>.
+   *
+   * @return Position after the last digit.
+   */
+  public static int formatInt(int value, byte[] dst, int pos) {
+    if (value == Integer.MIN_VALUE) {
+      System.arraycopy(MIN_INT, 0, dst, pos, MIN_INT.length);
+      return pos + MIN_INT.length;
+    }
+    if (value < 0) {
+      dst[pos++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for (int v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+    int end = pos + digits;
+    for (int i = end - 1; i >= pos; i--) {
+      dst[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    return end;
+  }
+}
@@ -0,0 +1,133 @@
+package org.example.sort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * K-way merge of sorted {@link RowSource}s.
+ * <p>
+ * Keeps a binary min-heap of source indexes ordered by their current key.
+ * Equal keys are taken from the lower source index first, so merging runs in
+ * arrival order keeps the sort stable.
+ */
+public class RowMerger {
+  private static final int STAGING_SIZE = 1024 * 1024;
+
+  private final RowSource[] sources;
+  private final int[] keys;
+  private final int[] heap;
+  private int heapSize;
+
+  public RowMerger(List<? extends RowSource> sources) {
+    this.sources = sources.toArray(new RowSource[0]);
+    this.keys = new int[this.sources.length];
+    this.heap = new int[this.sources.length];
+  }
+
+  /**
+   * Write all rows of all sources, in key order, to <code>sink</code>.
+   * Sources are closed once exhausted.
+   *
+   * @return Number of rows written.
+   */
+  public long mergeTo(BufferSink sink) throws IOException {
+    return mergeTo(sink, Long.MAX_VALUE);
+  }
+
+  /**
+   * Write the first <code>limit</code> rows, in key order, to
+   * <code>sink</code>. All sources are closed.
+   *
+   * @return Number of rows written.
+   */
+  public long mergeTo(BufferSink sink, long limit) throws IOException {
+    for (int i = 0; i < sources.length; i++) {
+      advance(i);
+    }
+    ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+    long rows = 0;
+    while (heapSize > 0 && rows < limit) {
+      int top = heap[0];
+      RowSource source = sources[top];
+      int length = source.length();
+      if (staging.remaining() < length) {
+        flush(staging, sink);
+        if (staging.capacity() < length) {
+          staging = ByteBuffer.allocateDirect(length);
+        }
+      }
+      source.copyTo(staging);
+      rows++;
+
+      if (source.next()) {
+        keys[top] = source.key();
+      } else {
+        source.close();
+        heap[0] = heap[--heapSize];
+      }
+      siftDown(0);
+    }
+    flush(staging, sink);
+    while (heapSize > 0) {
+      sources[heap[--heapSize]].close();
+    }
+    return rows;
+  }
+
+  private void advance(int index) throws IOException {
+    RowSource source = sources[index];
+    if (source.next()) {
+      keys[index] = source.key();
+      heap[heapSize] = index;
+      siftUp(heapSize++);
+    } else {
+      source.close();
+    }
+  }
+
+  private boolean less(int a, int b) {
+    return keys[a] < keys[b] || (keys[a] == keys[b] && a < b);
+  }
+
+  private void siftUp(int pos) {
+    int item = heap[pos];
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (!less(item, heap[parent])) {
+        break;
+      }
+      heap[pos] = heap[parent];
+      pos = parent;
+    }
+    heap[pos] = item;
+  }
+
+  private void siftDown(int pos) {
+    if (heapSize == 0) {
+      return;
+    }
+    int item = heap[pos];
+    int half = heapSize >>> 1;
+    while (pos < half) {
+      int child = 2 * pos + 1;
+      if (child + 1 < heapSize && less(heap[child + 1], heap[child])) {
+        child++;
+      }
+      if (!less(heap[child], item)) {
+        break;
+      }
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = item;
+  }
+
+  private static void flush(ByteBuffer staging, BufferSink sink) throws IOException {
+    staging.flip();
+    while (staging.hasRemaining()) {
+      sink.write(staging);
+    }
+    staging.clear();
+  }
+}
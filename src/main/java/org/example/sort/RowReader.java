@@ -0,0 +1,234 @@
+package org.example.sort;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the rows of a sort dataset from a stream without decoding them into
+ * Strings.
+ * <p>
+ * Each call to {@link #next()} exposes the raw bytes of one row (including
+ * the line separator for text rows) and its sort key. The bytes are only valid
+ * until the following call.
+ */
+public class RowReader implements RowSource {
+  private static final int DEFAULT_BUFFER = 1024 * 1024;
+
+  private final InputStream in;
+  private final RowFormat format;
+  private final int columnKey;
+  private final int rowWidth;
+
+  private byte[] buf;
+  private int limit;
+  private int rowStart;
+  private int rowEnd;
+  private int key;
+  private boolean eof;
+  // stream bytes dropped from the front of buf, and rows must start before rowLimit
+  private long discarded;
+  private long rowLimit = Long.MAX_VALUE;
+  // time spent reading the stream
+  private long readNanos;
+
+  public RowReader(InputStream in, SortConf conf) {
+    this(in, conf, DEFAULT_BUFFER);
+  }
+
+  public RowReader(InputStream in, SortConf conf, int bufferSize) {
+    this.in = in;
+    this.format = conf.getFormat();
+    this.columnKey = conf.getColumnKey();
+    this.rowWidth = conf.rowWidth();
+    this.buf = new byte[Math.max(bufferSize, Math.max(rowWidth, 64))];
+  }
+
+  /**
+   * Advance to the next row.
+   *
+   * @return false when the stream has no more rows.
+   */
+  @Override
+  public boolean next() throws IOException {
+    rowStart = rowEnd;
+    if (discarded + rowStart >= rowLimit) {
+      return false;
+    }
+    if (format == RowFormat.BINARY) {
+      return nextBinary();
+    }
+    return nextText();
+  }
+
+  /**
+   * Only return rows starting in the first <code>limit</code> bytes of the
+   * stream. The last row may end after the limit.
+   */
+  public void setLimit(long limit) {
+    this.rowLimit = limit;
+  }
+
+  /**
+   * @return Position of the current row from the start of the stream.
+   */
+  public long position() {
+    return discarded + rowStart;
+  }
+
+  /**
+   * @return Nanoseconds spent waiting for the stream so far. Parsing is not
+   *         included.
+   */
+  public long getReadNanos() {
+    return readNanos;
+  }
+
+  public byte[] buffer() {
+    return buf;
+  }
+
+  public int offset() {
+    return rowStart;
+  }
+
+  @Override
+  public int length() {
+    return rowEnd - rowStart;
+  }
+
+  @Override
+  public int key() {
+    return key;
+  }
+
+  @Override
+  public void copyTo(ByteBuffer dst) {
+    dst.put(buf, rowStart, rowEnd - rowStart);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private boolean nextBinary() throws IOException {
+    if (limit - rowStart < rowWidth && !fill(rowWidth)) {
+      if (limit > rowStart) {
+        throw new EOFException("Truncated binary row of " + (limit - rowStart) + " bytes");
+      }
+      return false;
+    }
+    rowEnd = rowStart + rowWidth;
+    key = readInt(buf, rowStart + columnKey * Integer.BYTES);
+    return true;
+  }
+
+  private boolean nextText() throws IOException {
+    int scanned = rowStart;
+    while (true) {
+      for (int i = scanned; i < limit; i++) {
+        if (buf[i] == '\n') {
+          rowEnd = i + 1;
+          key = parseKey(buf, rowStart, rowEnd, columnKey);
+          return true;
+        }
+      }
+      scanned = limit - rowStart;
+      if (!fill(limit - rowStart + 1)) {
+        if (limit == rowStart) {
+          return false;
+        }
+        // last line without separator
+        buf[limit++] = '\n';
+        rowEnd = limit;
+        key = parseKey(buf, rowStart, rowEnd, columnKey);
+        return true;
+      }
+      scanned += rowStart;
+    }
+  }
+
+  /**
+   * Move the current row to the beginning of the buffer and read more data
+   * until at least <code>needed</code> bytes are available from the row start.
+   *
+   * @return false if the stream ended before.
+   */
+  private boolean fill(int needed) throws IOException {
+    int pending = limit - rowStart;
+    discarded += rowStart;
+    if (needed >= buf.length) {
+      byte[] bigger = new byte[Math.max(buf.length * 2, needed + 1)];
+      System.arraycopy(buf, rowStart, bigger, 0, pending);
+      buf = bigger;
+    } else if (rowStart > 0) {
+      System.arraycopy(buf, rowStart, buf, 0, pending);
+    }
+    rowStart = 0;
+    rowEnd = 0;
+    limit = pending;
+    long start = System.nanoTime();
+    while (limit < needed && !eof) {
+      int read = in.read(buf, limit, buf.length - limit - 1);
+      if (read == -1) {
+        eof = true;
+      } else {
+        limit += read;
+      }
+    }
+    readNanos += System.nanoTime() - start;
+    return limit >= needed;
+  }
+
+  /**
+   * Parse the integer in column <code>column</code> of the text row held in
+   * <code>row[from, to)</code>.
+   */
+  public static int parseKey(byte[] row, int from, int to, int column) {
+    int i = from;
+    for (int c = 0; c < column; c++) {
+      while (i < to && row[i] != ',') {
+        i++;
+      }
+      i++;
+    }
+    if (i >= to) {
+      throw new NumberFormatException("Row has no column " + column);
+    }
+    boolean negative = row[i] == '-';
+    if (negative) {
+      i++;
+    }
+    // accumulate negatively so Integer.MIN_VALUE does not overflow
+    int min = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+    int result = 0;
+    int digits = 0;
+    for (; i < to; i++, digits++) {
+      int digit = row[i] - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      if (result < min / 10 || result * 10 < min + digit) {
+        throw new NumberFormatException("Key out of range in column " + column);
+      }
+      result = result * 10 - digit;
+    }
+    if (digits == 0) {
+      throw new NumberFormatException("Empty key in column " + column);
+    }
+    return negative ? result : -result;
+  }
+
+  public static int readInt(byte[] b, int off) {
+    return (b[off] << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+  }
+
+  public static void writeInt(byte[] b, int off, int value) {
+    b[off] = (byte) (value >>> 24);
+    b[off + 1] = (byte) (value >>> 16);
+    b[off + 2] = (byte) (value >>> 8);
+    b[off + 3] = (byte) value;
+  }
+}
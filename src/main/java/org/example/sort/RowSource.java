@@ -0,0 +1,32 @@
+package org.example.sort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sequence of rows with their sort keys, as consumed by {@link RowMerger}.
+ */
+public interface RowSource {
+
+  /**
+   * Advance to the next row.
+   *
+   * @return false when there are no more rows.
+   */
+  boolean next() throws IOException;
+
+  int key();
+
+  /**
+   * @return Size in bytes of the current row.
+   */
+  int length();
+
+  /**
+   * Append the bytes of the current row to <code>dst</code>, which must have
+   * at least {@link #length()} bytes remaining.
+   */
+  void copyTo(ByteBuffer dst);
+
+  void close() throws IOException;
+}
@@ -0,0 +1,141 @@
+package org.example.sort;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Compares the reducer sort strategies on random keys, without Crail:
+ * <ul>
+ * <li>comparator: boxed (key, row) entries sorted with
+ * <code>Comparator.comparingInt</code>, as the baseline reducer used to;</li>
+ * <li>packed: <code>Arrays.sort</code> over packed (key, offset) longs;</li>
+ * <li>radix: {@link RadixSort} over the same packed longs.</li>
+ * </ul>
+ * Prints the best time of each strategy and its throughput in rows/s.
+ */
+public class SortBench {
+
+  private static long[] packedEntries(int[] keys) {
+    long[] entries = new long[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      entries[i] = ((long) keys[i] << 32) | i;
+    }
+    return entries;
+  }
+
+  private static long timeComparator(int[] keys) {
+    List<SimpleEntry<Integer, Integer>> rows = new ArrayList<>(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      rows.add(new SimpleEntry<>(keys[i], i));
+    }
+    long start = System.nanoTime();
+    rows.sort(Comparator.comparingInt(SimpleEntry::getKey));
+    return System.nanoTime() - start;
+  }
+
+  private static long timePacked(int[] keys) {
+    long[] entries = packedEntries(keys);
+    long start = System.nanoTime();
+    Arrays.sort(entries);
+    return System.nanoTime() - start;
+  }
+
+  private static long timeRadix(int[] keys, ForkJoinPool pool) {
+    long[] entries = packedEntries(keys);
+    long start = System.nanoTime();
+    RadixSort.sort(entries, 0, entries.length, pool);
+    long elapsed = System.nanoTime() - start;
+    for (int i = 1; i < entries.length; i++) {
+      if ((int) (entries[i - 1] >> 32) > (int) (entries[i] >> 32)) {
+        throw new IllegalStateException("Radix sort output is not sorted at " + i);
+      }
+    }
+    return elapsed;
+  }
+
+  private static void report(String name, int rows, long nanos) {
+    System.out.println(String.format("%-10s %,12d rows %10.3f s %,14.0f rows/s",
+        name, rows, nanos / 1e9, rows / (nanos / 1e9)));
+  }
+
+  public static void main(String[] args) {
+    int[] sizes = { 1000000, 10000000, 50000000 };
+    int repeat = 3;
+    int threads = ForkJoinPool.getCommonPoolParallelism();
+    boolean skipComparator = false;
+
+    Option helpOption = Option.builder("h").desc("show this help message").build();
+    Option rowsOption = Option.builder("r").desc("comma separated numbers of rows per group").hasArg().build();
+    Option repeatOption = Option.builder("n").desc("runs per strategy, the best is reported [1..n]").hasArg().build();
+    Option threadsOption = Option.builder("t").desc("radix sort threads [1..n]").hasArg().build();
+    Option noComparatorOption = Option.builder().desc("skip the comparator sort (needs a large heap)").longOpt("no-comparator").build();
+
+    Options options = new Options();
+    options.addOption(helpOption);
+    options.addOption(rowsOption);
+    options.addOption(repeatOption);
+    options.addOption(threadsOption);
+    options.addOption(noComparatorOption);
+
+    CommandLineParser parser = new DefaultParser();
+    try {
+      CommandLine line = parser.parse(options, args);
+
+      if (line.hasOption(helpOption.getOpt())) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("sortbench", options);
+        System.exit(-1);
+      }
+      if (line.hasOption(rowsOption.getOpt())) {
+        sizes = Arrays.stream(line.getOptionValue(rowsOption.getOpt()).split(","))
+            .mapToInt(Integer::parseInt).toArray();
+      }
+      if (line.hasOption(repeatOption.getOpt())) {
+        repeat = Integer.parseInt(line.getOptionValue(repeatOption.getOpt()));
+      }
+      if (line.hasOption(threadsOption.getOpt())) {
+        threads = Integer.parseInt(line.getOptionValue(threadsOption.getOpt()));
+      }
+      skipComparator = line.hasOption(noComparatorOption.getLongOpt());
+    } catch (ParseException e) {
+      System.err.println("Could not parse options.");
+      e.printStackTrace();
+      System.exit(-1);
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    System.out.println("Radix sort threads: " + threads);
+    for (int rows : sizes) {
+      int[] keys = new Random(rows).ints(rows).toArray();
+      long comparator = Long.MAX_VALUE;
+      long packed = Long.MAX_VALUE;
+      long radix = Long.MAX_VALUE;
+      for (int i = 0; i < repeat; i++) {
+        if (!skipComparator) {
+          comparator = Math.min(comparator, timeComparator(keys));
+        }
+        packed = Math.min(packed, timePacked(keys));
+        radix = Math.min(radix, timeRadix(keys, pool));
+      }
+      if (!skipComparator) {
+        report("comparator", rows, comparator);
+      }
+      report("packed", rows, packed);
+      report("radix", rows, radix);
+    }
+    pool.shutdown();
+  }
+}
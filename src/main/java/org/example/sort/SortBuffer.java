@@ -0,0 +1,269 @@
+package org.example.sort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Off-heap buffer of rows to sort.
+ * <p>
+ * Row bytes are appended to a growable arena of direct chunks, and each row
+ * is indexed by a packed <code>long</code> with its key in the high 32 bits
+ * and its arena offset in the low 32 bits. Sorting the packed array (with
+ * {@link RadixSort}) orders the rows by key without touching their bytes or
+ * creating an object per row.
+ * <p>
+ * Variable-length rows are stored with a 4-byte length prefix. Not
+ * thread-safe.
+ */
+public class SortBuffer {
+  private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+  private static final long MAX_ARENA = 1L << 32;
+  private static final int STAGING_SIZE = 1024 * 1024;
+
+  private final int rowWidth;
+  private final int chunkSize;
+  private final int chunkShift;
+  // chunks in use, and all chunks kept across clear() for reuse
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private final List<ByteBuffer> allocated = new ArrayList<>();
+  private ByteBuffer current;
+
+  private long[] entries = new long[1 << 16];
+  private int size;
+  private long rowBytes;
+  private long arenaBytes;
+  // rows were added in key order, e.g. a presorted segment
+  private boolean ordered = true;
+
+  /**
+   * @param rowWidth Size of the rows, or -1 for variable-length rows.
+   */
+  public SortBuffer(int rowWidth) {
+    this(rowWidth, CHUNK_SIZE);
+  }
+
+  /**
+   * @param rowWidth  Size of the rows, or -1 for variable-length rows.
+   * @param chunkSize Size of each arena chunk (at most 64 MiB).
+   */
+  public SortBuffer(int rowWidth, int chunkSize) {
+    this.rowWidth = rowWidth;
+    this.chunkSize = Integer.highestOneBit(Math.min(chunkSize, CHUNK_SIZE));
+    this.chunkShift = Integer.numberOfTrailingZeros(this.chunkSize);
+  }
+
+  public void add(int key, byte[] row, int offset, int length) {
+    int stored = rowWidth > 0 ? rowWidth : length + Integer.BYTES;
+    if (current == null || current.remaining() < stored) {
+      nextChunk(stored);
+    }
+    long address = ((long) (chunks.size() - 1) << chunkShift) | current.position();
+    if (rowWidth <= 0) {
+      current.putInt(length);
+    }
+    current.put(row, offset, length);
+
+    if (size > 0 && key < (int) (entries[size - 1] >> 32)) {
+      ordered = false;
+    }
+    if (size == entries.length) {
+      entries = Arrays.copyOf(entries, size + (size >> 1));
+    }
+    entries[size++] = ((long) key << 32) | address;
+    rowBytes += length;
+    arenaBytes += stored;
+  }
+
+  /**
+   * @return Whether a row of <code>length</code> bytes can be added. The
+   *         arena is limited to 4 GiB by the 32-bit offsets.
+   */
+  public boolean hasRoom(int length) {
+    int stored = rowWidth > 0 ? rowWidth : length + Integer.BYTES;
+    return (current != null && current.remaining() >= stored)
+        || (long) (chunks.size() + 1) << chunkShift <= MAX_ARENA;
+  }
+
+  private void nextChunk(int needed) {
+    if (needed > chunkSize) {
+      throw new IllegalArgumentException("Row of " + needed + " bytes does not fit in a sort buffer chunk");
+    }
+    int index = chunks.size();
+    if ((long) (index + 1) << chunkShift > MAX_ARENA) {
+      throw new IllegalStateException("Sort buffer is full (" + rowBytes + " bytes)");
+    }
+    if (current != null) {
+      // count the unused tail of the previous chunk
+      arenaBytes += current.remaining();
+    }
+    if (index < allocated.size()) {
+      current = allocated.get(index);
+      current.clear();
+    } else {
+      current = ByteBuffer.allocateDirect(chunkSize);
+      allocated.add(current);
+    }
+    chunks.add(current);
+  }
+
+  /**
+   * Sort the rows by key. Rows with the same key keep their insertion order.
+   * Rows added in key order are left as they are.
+   */
+  public void sort() {
+    if (!ordered) {
+      RadixSort.sort(entries, 0, size);
+      ordered = true;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return Bytes of row data added, without the index or length prefixes.
+   */
+  public long rowBytes() {
+    return rowBytes;
+  }
+
+  /**
+   * @return Memory taken by the rows added so far (arena plus index).
+   */
+  public long bytesUsed() {
+    return arenaBytes + (long) size * Long.BYTES;
+  }
+
+  /**
+   * @return Memory held by the buffer (arena plus index).
+   */
+  public long memoryUsed() {
+    return (long) allocated.size() * chunkSize + (long) entries.length * Long.BYTES;
+  }
+
+  public int key(int index) {
+    return (int) (entries[index] >> 32);
+  }
+
+  /**
+   * Write all the rows, in index order, to <code>sink</code>.
+   */
+  public void writeTo(BufferSink sink) throws IOException {
+    ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+    ByteBuffer[] views = new ByteBuffer[chunks.size()];
+    for (int c = 0; c < views.length; c++) {
+      views[c] = chunks.get(c).duplicate();
+    }
+    for (int i = 0; i < size; i++) {
+      long address = entries[i] & 0xffffffffL;
+      ByteBuffer view = views[(int) (address >>> chunkShift)];
+      int position = (int) (address & (chunkSize - 1));
+      int length = rowWidth;
+      if (rowWidth <= 0) {
+        length = view.getInt(position);
+        position += Integer.BYTES;
+      }
+      if (staging.remaining() < length) {
+        flush(staging, sink);
+        if (staging.capacity() < length) {
+          staging = ByteBuffer.allocateDirect(length);
+        }
+      }
+      view.limit(position + length).position(position);
+      staging.put(view);
+      view.limit(view.capacity());
+    }
+    flush(staging, sink);
+  }
+
+  private static void flush(ByteBuffer staging, BufferSink sink) throws IOException {
+    staging.flip();
+    while (staging.hasRemaining()) {
+      sink.write(staging);
+    }
+    staging.clear();
+  }
+
+  /**
+   * Iterate over the rows in index order (sorted order after {@link #sort()}).
+   * The buffer must not change while the cursor is in use.
+   */
+  public RowSource cursor() {
+    ByteBuffer[] views = new ByteBuffer[chunks.size()];
+    for (int c = 0; c < views.length; c++) {
+      views[c] = chunks.get(c).duplicate();
+    }
+    return new RowSource() {
+      private int index = -1;
+      private ByteBuffer view;
+      private int position;
+      private int length;
+
+      @Override
+      public boolean next() {
+        if (++index >= size) {
+          return false;
+        }
+        long address = entries[index] & 0xffffffffL;
+        view = views[(int) (address >>> chunkShift)];
+        position = (int) (address & (chunkSize - 1));
+        length = rowWidth;
+        if (rowWidth <= 0) {
+          length = view.getInt(position);
+          position += Integer.BYTES;
+        }
+        return true;
+      }
+
+      @Override
+      public int key() {
+        return (int) (entries[index] >> 32);
+      }
+
+      @Override
+      public int length() {
+        return length;
+      }
+
+      @Override
+      public void copyTo(ByteBuffer dst) {
+        view.limit(position + length).position(position);
+        dst.put(view);
+        view.limit(view.capacity());
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  /**
+   * Drop all rows, keeping the allocated memory for reuse.
+   */
+  public void clear() {
+    chunks.clear();
+    current = null;
+    size = 0;
+    ordered = true;
+    rowBytes = 0;
+    arenaBytes = 0;
+  }
+
+  /**
+   * Drop all rows and release the arena.
+   */
+  public void release() {
+    clear();
+    allocated.clear();
+    entries = new long[1 << 16];
+  }
+}
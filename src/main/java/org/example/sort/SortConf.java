@@ -0,0 +1,219 @@
+package org.example.sort;
+
+import java.util.Properties;
+
+import org.apache.crail.CrailStore;
+import org.example.CrailProperties;
+
+/**
+ * Parameters shared by all the pieces of a sort job (generator, mappers,
+ * reducers and result check).
+ * <p>
+ * The active sort stores it in the reducers directory so that each
+ * <code>ReduceAction</code> can load it on creation.
+ */
+public class SortConf {
+  public static final String FILE_NAME = "conf";
+
+  private RowFormat format = RowFormat.TEXT;
+  private int columns = 10;
+  private int columnKey = 0;
+  // reducer memory before spilling sorted runs, 0 for no limit
+  private long memoryBudget = 0;
+  private int spillStorageClass = 1;
+  // mapper buffer per group sorted before sending, 0 to send rows unsorted
+  private long presortBuffer = 0;
+  // reduce actions send their sorted rows to the reader instead of a token
+  private boolean streamResult = false;
+  private boolean keepResultFile = true;
+  // threads generating or mapping each partition
+  private int partitionThreads = 1;
+  // buffers in flight per group for the asynchronous mapper sends
+  private int sendWindow = 4;
+  // aggregator actions between mappers and reducers, 0 to send directly
+  private int aggregators = 0;
+  // rows with the smallest keys kept by the reducers, 0 to sort all rows
+  private int limit = 0;
+  private KeyDistribution keyDistribution = KeyDistribution.UNIFORM;
+  private double distributionParameter = KeyDistribution.UNIFORM.getDefaultParameter();
+
+  public SortConf() {
+  }
+
+  public SortConf(RowFormat format, int columns, int columnKey) {
+    this.format = format;
+    this.columns = columns;
+    this.columnKey = columnKey;
+  }
+
+  public RowFormat getFormat() {
+    return format;
+  }
+
+  public int getColumns() {
+    return columns;
+  }
+
+  public int getColumnKey() {
+    return columnKey;
+  }
+
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  public void setMemoryBudget(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  public int getSpillStorageClass() {
+    return spillStorageClass;
+  }
+
+  public void setSpillStorageClass(int spillStorageClass) {
+    this.spillStorageClass = spillStorageClass;
+  }
+
+  public long getPresortBuffer() {
+    return presortBuffer;
+  }
+
+  public void setPresortBuffer(long presortBuffer) {
+    this.presortBuffer = presortBuffer;
+  }
+
+  public boolean isPresorted() {
+    return presortBuffer > 0;
+  }
+
+  public boolean isStreamResult() {
+    return streamResult;
+  }
+
+  public void setStreamResult(boolean streamResult) {
+    this.streamResult = streamResult;
+  }
+
+  /**
+   * @return Whether reducers write their sorted rows to the result files.
+   *         Only optional when they stream the result.
+   */
+  public boolean isKeepResultFile() {
+    return keepResultFile || !streamResult;
+  }
+
+  public void setKeepResultFile(boolean keepResultFile) {
+    this.keepResultFile = keepResultFile;
+  }
+
+  public int getPartitionThreads() {
+    return partitionThreads;
+  }
+
+  public void setPartitionThreads(int partitionThreads) {
+    this.partitionThreads = partitionThreads;
+  }
+
+  public int getSendWindow() {
+    return sendWindow;
+  }
+
+  public void setSendWindow(int sendWindow) {
+    this.sendWindow = sendWindow;
+  }
+
+  public int getAggregators() {
+    return aggregators;
+  }
+
+  public void setAggregators(int aggregators) {
+    this.aggregators = aggregators;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  public KeyDistribution getKeyDistribution() {
+    return keyDistribution;
+  }
+
+  public double getDistributionParameter() {
+    return distributionParameter;
+  }
+
+  public void setKeyDistribution(KeyDistribution keyDistribution, double distributionParameter) {
+    this.keyDistribution = keyDistribution;
+    this.distributionParameter = distributionParameter;
+  }
+
+  /**
+   * @return Size in bytes of a binary row, or -1 for text rows.
+   */
+  public int rowWidth() {
+    return format.rowWidth(columns);
+  }
+
+  public Properties toProperties() {
+    Properties props = new Properties();
+    props.setProperty("format", format.name());
+    props.setProperty("columns", Integer.toString(columns));
+    props.setProperty("columnKey", Integer.toString(columnKey));
+    props.setProperty("memoryBudget", Long.toString(memoryBudget));
+    props.setProperty("spillStorageClass", Integer.toString(spillStorageClass));
+    props.setProperty("presortBuffer", Long.toString(presortBuffer));
+    props.setProperty("streamResult", Boolean.toString(streamResult));
+    props.setProperty("keepResultFile", Boolean.toString(keepResultFile));
+    props.setProperty("partitionThreads", Integer.toString(partitionThreads));
+    props.setProperty("sendWindow", Integer.toString(sendWindow));
+    props.setProperty("aggregators", Integer.toString(aggregators));
+    props.setProperty("limit", Integer.toString(limit));
+    props.setProperty("keyDistribution", keyDistribution.name());
+    props.setProperty("distributionParameter", Double.toString(distributionParameter));
+    return props;
+  }
+
+  public static SortConf fromProperties(Properties props) {
+    SortConf conf = new SortConf();
+    conf.format = RowFormat.valueOf(props.getProperty("format", conf.format.name()));
+    conf.columns = Integer.parseInt(props.getProperty("columns", Integer.toString(conf.columns)));
+    conf.columnKey = Integer.parseInt(props.getProperty("columnKey", Integer.toString(conf.columnKey)));
+    conf.memoryBudget = Long.parseLong(props.getProperty("memoryBudget", Long.toString(conf.memoryBudget)));
+    conf.spillStorageClass = Integer.parseInt(
+        props.getProperty("spillStorageClass", Integer.toString(conf.spillStorageClass)));
+    conf.presortBuffer = Long.parseLong(props.getProperty("presortBuffer", Long.toString(conf.presortBuffer)));
+    conf.streamResult = Boolean.parseBoolean(props.getProperty("streamResult", Boolean.toString(conf.streamResult)));
+    conf.keepResultFile = Boolean.parseBoolean(
+        props.getProperty("keepResultFile", Boolean.toString(conf.keepResultFile)));
+    conf.partitionThreads = Integer.parseInt(props.getProperty("partitionThreads", Integer.toString(conf.partitionThreads)));
+    conf.sendWindow = Integer.parseInt(props.getProperty("sendWindow", Integer.toString(conf.sendWindow)));
+    conf.aggregators = Integer.parseInt(props.getProperty("aggregators", Integer.toString(conf.aggregators)));
+    conf.limit = Integer.parseInt(props.getProperty("limit", Integer.toString(conf.limit)));
+    conf.keyDistribution = KeyDistribution.valueOf(
+        props.getProperty("keyDistribution", conf.keyDistribution.name()));
+    conf.distributionParameter = Double.parseDouble(
+        props.getProperty("distributionParameter", Double.toString(conf.distributionParameter)));
+    return conf;
+  }
+
+  /**
+   * Save this configuration as a Crail file at <code>path</code>.
+   */
+  public void store(CrailStore store, String path) throws Exception {
+    CrailProperties.store(store, path, toProperties());
+  }
+
+  /**
+   * Load the configuration saved at <code>path</code>.
+   *
+   * @return The configuration, or the defaults if the file does not exist.
+   */
+  public static SortConf load(CrailStore store, String path) throws Exception {
+    Properties props = CrailProperties.load(store, path);
+    return props == null ? new SortConf() : fromProperties(props);
+  }
+}
@@ -0,0 +1,88 @@
+package org.example.sort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timings of a sort job as JSON: the client phases, and for each role
+ * (mapper, reducer) the min, median and max time of each phase over the
+ * workers, the slowest worker, and the times of every worker. All times are
+ * in nanoseconds.
+ */
+public class TimingReport {
+  private final Map<String, Long> client = new LinkedHashMap<>();
+  private final Map<String, List<PhaseTimes>> roles = new LinkedHashMap<>();
+
+  public synchronized void addClientPhase(String name, long nanos) {
+    client.put(name, nanos);
+  }
+
+  /**
+   * Add the times of the next worker of <code>role</code>.
+   */
+  public synchronized void add(String role, PhaseTimes times) {
+    roles.computeIfAbsent(role, r -> new ArrayList<>()).add(times);
+  }
+
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder("{\n  \"client\": {");
+    String separator = "";
+    for (Map.Entry<String, Long> phase : client.entrySet()) {
+      json.append(separator).append("\"").append(phase.getKey()).append("\": ").append(phase.getValue());
+      separator = ", ";
+    }
+    json.append("}");
+    for (Map.Entry<String, List<PhaseTimes>> role : roles.entrySet()) {
+      json.append(",\n  \"").append(role.getKey()).append("\": ");
+      appendRole(json, role.getValue());
+    }
+    return json.append("\n}").toString();
+  }
+
+  private static void appendRole(StringBuilder json, List<PhaseTimes> workers) {
+    List<Phase> phases = new ArrayList<>();
+    for (Phase phase : Phase.values()) {
+      for (PhaseTimes times : workers) {
+        if (times.get(phase) > 0) {
+          phases.add(phase);
+          break;
+        }
+      }
+    }
+
+    json.append("{\n    \"workers\": ").append(workers.size()).append(",\n    \"phases\": {");
+    String separator = "\n";
+    for (Phase phase : phases) {
+      long[] values = new long[workers.size()];
+      int slowest = 0;
+      for (int i = 0; i < values.length; i++) {
+        values[i] = workers.get(i).get(phase);
+        if (values[i] > values[slowest]) {
+          slowest = i;
+        }
+      }
+      long[] sorted = values.clone();
+      Arrays.sort(sorted);
+      json.append(separator).append(String.format(
+          "      \"%s\": {\"min\": %d, \"median\": %d, \"max\": %d, \"slowest\": %d}", phase.label(),
+          sorted[0], sorted[(sorted.length - 1) / 2], sorted[sorted.length - 1], slowest));
+      separator = ",\n";
+    }
+    json.append("\n    },\n    \"perWorker\": [");
+    separator = "\n";
+    for (PhaseTimes times : workers) {
+      json.append(separator).append("      {");
+      String fieldSeparator = "";
+      for (Phase phase : phases) {
+        json.append(fieldSeparator).append("\"").append(phase.label()).append("\": ").append(times.get(phase));
+        fieldSeparator = ", ";
+      }
+      json.append("}");
+      separator = ",\n";
+    }
+    json.append("\n    ]\n  }");
+  }
+}
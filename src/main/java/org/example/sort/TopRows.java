@@ -0,0 +1,140 @@
+package org.example.sort;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps the <code>capacity</code> rows with the smallest keys seen so far.
+ * <p>
+ * A binary max-heap of packed <code>long</code>s (key in the high 32 bits,
+ * row slot in the low 32 bits, as in {@link SortBuffer}) has the largest kept
+ * key on top, so a row that does not make it is rejected with one comparison
+ * and without copying. An accepted row replaces the top row's slot, reusing
+ * its byte array when it is large enough. Not thread-safe.
+ */
+public class TopRows {
+  private final int capacity;
+  private final long[] heap;
+  private final byte[][] rows;
+  private final int[] lengths;
+  private int size;
+
+  public TopRows(int capacity) {
+    this.capacity = capacity;
+    this.heap = new long[capacity];
+    this.rows = new byte[capacity][];
+    this.lengths = new int[capacity];
+  }
+
+  /**
+   * Keep the row if its key is among the smallest ones. On equal keys the
+   * row kept first wins.
+   *
+   * @return Whether the row was kept.
+   */
+  public boolean offer(int key, byte[] row, int offset, int length) {
+    int slot;
+    if (size < capacity) {
+      slot = size;
+      heap[size] = pack(key, slot);
+      siftUp(size++);
+    } else if (capacity > 0 && key < (int) (heap[0] >> 32)) {
+      slot = (int) heap[0];
+      heap[0] = pack(key, slot);
+      siftDown(0);
+    } else {
+      return false;
+    }
+    if (rows[slot] == null || rows[slot].length < length) {
+      rows[slot] = new byte[length];
+    }
+    System.arraycopy(row, offset, rows[slot], 0, length);
+    lengths[slot] = length;
+    return true;
+  }
+
+  /**
+   * Offer all rows kept by <code>other</code>.
+   */
+  public void addAll(TopRows other) {
+    for (int i = 0; i < other.size; i++) {
+      int slot = (int) other.heap[i];
+      offer((int) (other.heap[i] >> 32), other.rows[slot], 0, other.lengths[slot]);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Iterate over the kept rows in key order. The rows must not change while
+   * the cursor is in use.
+   */
+  public RowSource cursor() {
+    long[] sorted = Arrays.copyOf(heap, size);
+    Arrays.sort(sorted);
+    return new RowSource() {
+      private int index = -1;
+
+      @Override
+      public boolean next() {
+        return ++index < sorted.length;
+      }
+
+      @Override
+      public int key() {
+        return (int) (sorted[index] >> 32);
+      }
+
+      @Override
+      public int length() {
+        return lengths[(int) sorted[index]];
+      }
+
+      @Override
+      public void copyTo(ByteBuffer dst) {
+        int slot = (int) sorted[index];
+        dst.put(rows[slot], 0, lengths[slot]);
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private static long pack(int key, int slot) {
+    return ((long) key << 32) | slot;
+  }
+
+  private void siftUp(int pos) {
+    long item = heap[pos];
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (heap[parent] >= item) {
+        break;
+      }
+      heap[pos] = heap[parent];
+      pos = parent;
+    }
+    heap[pos] = item;
+  }
+
+  private void siftDown(int pos) {
+    long item = heap[pos];
+    int half = size >>> 1;
+    while (pos < half) {
+      int child = 2 * pos + 1;
+      if (child + 1 < size && heap[child + 1] > heap[child]) {
+        child++;
+      }
+      if (heap[child] <= item) {
+        break;
+      }
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = item;
+  }
+}
@@ -0,0 +1,143 @@
+package org.example.sort.active;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.crail.CrailAction;
+import org.example.sort.SortConf;
+
+/**
+ * First level of the two-level shuffle: receives the rows of several
+ * mappers, already split by group, and forwards them to the reduce actions.
+ * <p>
+ * Each mapper writes all its rows to one aggregator, in frames of rows of one
+ * group (see {@link AsyncSender#writeFrame}). Frames of all incoming streams
+ * are appended to one outgoing stream per group, opened on the first rows of
+ * the group. With about sqrt(N) aggregators, each one takes sqrt(N) mapper
+ * streams and each reduce action one stream per aggregator, instead of one
+ * per mapper. Reading the action waits for the writes in progress, rejects
+ * later ones, closes the outgoing streams and returns a completion token.
+ */
+public class AggregateAction extends CrailAction {
+  static final int FRAME_HEADER = 2 * Integer.BYTES;
+  private static final int SEND_BUFFER = 256 * 1024;
+  private static final long POOL_MEMORY = 128L * 1024 * 1024;
+
+  private SortConf conf;
+  private String groupsDir;
+  private ShuffleBufferPool bufferPool;
+  // guards the fields below
+  private Map<Integer, AsyncSender> senders;
+  private int activeWrites;
+  private boolean closed;
+
+  @Override
+  public void onCreate() {
+    conf = new SortConf();
+    try {
+      String path = this.self.getPath();
+      groupsDir = path.substring(0, path.lastIndexOf('/') + 1);
+      conf = SortConf.load(this.fs, groupsDir + SortConf.FILE_NAME);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    bufferPool = new ShuffleBufferPool(SEND_BUFFER, (int) (POOL_MEMORY / SEND_BUFFER), conf.getSendWindow());
+    senders = new HashMap<>();
+  }
+
+  @Override
+  public void onWrite(ReadableByteChannel channel) {
+    synchronized (senders) {
+      if (closed) {
+        System.err.println("Rejected write to " + self.getPath() + ", already flushed");
+        try {
+          channel.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        return;
+      }
+      activeWrites++;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+    byte[] rows = new byte[64 * 1024];
+    try {
+      while (true) {
+        int group;
+        try {
+          group = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        int length = in.readInt();
+        if (length > rows.length) {
+          rows = new byte[Math.max(length, 2 * rows.length)];
+        }
+        in.readFully(rows, 0, length);
+        sender(group).write(rows, 0, length);
+      }
+      in.close();
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      synchronized (senders) {
+        activeWrites--;
+        senders.notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void onRead(WritableByteChannel channel) {
+    List<AsyncSender> opened;
+    synchronized (senders) {
+      closed = true;
+      while (activeWrites > 0) {
+        try {
+          senders.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      opened = new ArrayList<>(senders.values());
+      senders.clear();
+    }
+    for (AsyncSender sender : opened) {
+      try {
+        sender.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    System.out.println("Forwarded from " + self.getPath() + ", buffers: " + bufferPool);
+    try {
+      channel.write(ByteBuffer.allocate(Integer.BYTES));
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private AsyncSender sender(int group) throws Exception {
+    synchronized (senders) {
+      AsyncSender sender = senders.get(group);
+      if (sender == null) {
+        sender = bufferPool.sender(this.fs.lookup(groupsDir + "group_" + group).get()
+            .asObject().getProxy().getWritableAsyncChannel());
+        senders.put(group, sender);
+      }
+      return sender;
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package org.example.sort.active;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.crail.core.ActiveAsyncChannel;
+
+/**
+ * Sends rows to one reduce action through its asynchronous write channel.
+ * <p>
+ * Rows are copied into buffers from a {@link ShuffleBufferPool}, and full
+ * buffers are written without waiting for the previous ones. At most
+ * <code>window</code> writes are in flight; further full buffers wait in a
+ * backlog. Safe to use from several threads: each write holds this sender's
+ * write lock, so writes are not interleaved, and the backlog and the writes
+ * in flight are guarded by a window lock that is never held while waiting.
+ * Threads waiting for a pool buffer use the window lock to reap finished
+ * writes of any sender, and wait for its writes holding no lock of it.
+ */
+class AsyncSender {
+  private final ShuffleBufferPool pool;
+  private final ActiveAsyncChannel channel;
+  private final int window;
+
+  // held for a whole write, also while waiting for a pool buffer
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private ByteBuffer current;
+  // bytes in current, read by other threads to pick the fullest sender
+  private volatile int staged;
+
+  // guards the fields below, held briefly
+  private final Object windowLock = new Object();
+  private long windowBytes;
+  private final Deque<ByteBuffer> backlog = new ArrayDeque<>();
+  private final Deque<ByteBuffer> inFlight = new ArrayDeque<>();
+  private final Deque<Future<Integer>> writes = new ArrayDeque<>();
+  private IOException failure;
+
+  AsyncSender(ShuffleBufferPool pool, ActiveAsyncChannel channel, int window) {
+    this.pool = pool;
+    this.channel = channel;
+    this.window = Math.max(1, window);
+  }
+
+  void write(byte[] rows, int offset, int length) throws IOException {
+    writeLock.lock();
+    try {
+      append(rows, offset, length);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Write rows of <code>group</code> as one frame for an
+   * {@link AggregateAction}: group and length as ints, then the rows. The
+   * frame is not interleaved with writes from other threads.
+   */
+  void writeFrame(int group, byte[] rows, int offset, int length) throws IOException {
+    byte[] header = new byte[AggregateAction.FRAME_HEADER];
+    ByteBuffer.wrap(header).putInt(group).putInt(length);
+    writeLock.lock();
+    try {
+      append(header, 0, header.length);
+      append(rows, offset, length);
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Send the last rows, wait for all writes and close the channel.
+   */
+  void close() throws IOException {
+    writeLock.lock();
+    try {
+      if (current != null && current.position() > 0) {
+        queueCurrent();
+      } else if (current != null) {
+        pool.release(current);
+        current = null;
+      }
+      while (true) {
+        Future<Integer> oldest;
+        synchronized (windowLock) {
+          reap();
+          oldest = writes.peek();
+        }
+        if (oldest == null) {
+          break;
+        }
+        try {
+          // only this sender's writers wait here, the next reap reports errors
+          oldest.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        } catch (ExecutionException e) {
+          // reported by reap
+        }
+      }
+      synchronized (windowLock) {
+        if (failure != null) {
+          throw failure;
+        }
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    channel.close();
+  }
+
+  /**
+   * Give the buffers of finished writes back and send more of the backlog,
+   * without waiting. Errors are reported to this sender's writers.
+   */
+  void reapFinished() {
+    synchronized (windowLock) {
+      reap();
+    }
+  }
+
+  /**
+   * @return Bytes held by this sender: in flight, in the backlog and in the
+   *         buffer being filled.
+   */
+  long pendingBytes() {
+    synchronized (windowLock) {
+      return windowBytes + staged;
+    }
+  }
+
+  /**
+   * @return Whether {@link #flushOldest()} can give a buffer back: writes
+   *         are in flight or in the backlog, or a partly filled buffer can be
+   *         sent.
+   */
+  boolean canFlush() {
+    synchronized (windowLock) {
+      if (!writes.isEmpty() || !backlog.isEmpty()) {
+        return true;
+      }
+    }
+    return staged > 0 && !writeLock.isLocked();
+  }
+
+  /**
+   * Send the partly filled buffer if no thread is writing, then wait for the
+   * oldest write and give its buffer back. Waits holding no lock of this
+   * sender, and must not be called with the pool lock held.
+   */
+  void flushOldest() throws IOException {
+    flushIfIdle();
+    Future<Integer> oldest;
+    synchronized (windowLock) {
+      reap();
+      oldest = writes.peek();
+    }
+    if (oldest == null) {
+      return;
+    }
+    try {
+      oldest.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a write");
+    } catch (ExecutionException e) {
+      // reported to this sender's writers by reap
+    }
+    reapFinished();
+  }
+
+  /**
+   * If no thread is writing to this sender, send its partly filled buffer so
+   * that the buffer comes back to the pool.
+   *
+   * @return Whether a buffer was sent.
+   */
+  boolean flushIfIdle() throws IOException {
+    if (!writeLock.tryLock()) {
+      return false;
+    }
+    try {
+      if (current == null || current.position() == 0) {
+        return false;
+      }
+      queueCurrent();
+      return true;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void append(byte[] rows, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (current == null) {
+        current = pool.acquire();
+      }
+      int chunk = Math.min(length, current.remaining());
+      current.put(rows, offset, chunk);
+      offset += chunk;
+      length -= chunk;
+      if (!current.hasRemaining()) {
+        queueCurrent();
+      } else {
+        staged = current.position();
+      }
+    }
+  }
+
+  /**
+   * Move the current buffer to the backlog. Called with the write lock held.
+   */
+  private void queueCurrent() throws IOException {
+    current.flip();
+    staged = 0;
+    synchronized (windowLock) {
+      if (failure != null) {
+        pool.release(current);
+        current = null;
+        throw failure;
+      }
+      backlog.add(current);
+      windowBytes += current.limit();
+      current = null;
+      reap();
+    }
+  }
+
+  /**
+   * Complete the finished writes, giving their buffers back, and start
+   * writes from the backlog up to the window. Called with the window lock
+   * held, never waits.
+   */
+  private void reap() {
+    while (!writes.isEmpty() && writes.peek().isDone()) {
+      ByteBuffer buffer = inFlight.poll();
+      Future<Integer> write = writes.poll();
+      windowBytes -= buffer.limit();
+      pool.release(buffer);
+      try {
+        int written = write.get();
+        // buffers are sent from position 0, so the limit is the length sent
+        if (written < buffer.limit() && failure == null) {
+          // later writes are already queued, the rest cannot be sent in order
+          failure = new IOException("Asynchronous write sent " + written + " of " + buffer.limit() + " bytes");
+        }
+      } catch (InterruptedException | ExecutionException e) {
+        if (failure == null) {
+          failure = new IOException(e);
+        }
+      }
+    }
+    while (failure == null && !backlog.isEmpty() && writes.size() < window) {
+      ByteBuffer buffer = backlog.poll();
+      try {
+        writes.add(channel.write(buffer));
+        inFlight.add(buffer);
+      } catch (IOException e) {
+        windowBytes -= buffer.limit();
+        pool.release(buffer);
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      // nothing more will be sent
+      while (!backlog.isEmpty()) {
+        ByteBuffer buffer = backlog.poll();
+        windowBytes -= buffer.limit();
+        pool.release(buffer);
+      }
+    }
+  }
+}
@@ -1,11 +1,20 @@
 package org.example.sort.active;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -19,7 +28,6 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.crail.CrailBufferedInputStream;
 import org.apache.crail.CrailFile;
 import org.apache.crail.CrailLocationClass;
 import org.apache.crail.CrailNodeType;
@@ -27,41 +35,72 @@ import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
 import org.apache.crail.conf.CrailConfiguration;
 import org.apache.crail.core.ActiveAsyncChannel;
+import org.apache.crail.core.ActiveReadableChannel;
+import org.example.CrailProperties;
 import org.example.sort.GenPartition;
+import org.example.sort.KeyDistribution;
+import org.example.sort.KeySampler;
+import org.example.sort.PhaseTimes;
+import org.example.sort.RangePartitioner;
+import org.example.sort.ResultSummary;
+import org.example.sort.RowFormat;
+import org.example.sort.RowMerger;
+import org.example.sort.RowReader;
+import org.example.sort.SortConf;
+import org.example.sort.TimingReport;
 
 public class Client {
-  private final int workers;
+  private static final int SEND_BUFFER = 256 * 1024;
+
+  private final int mappers;
+  private final int reducers;
   private final int columnKey;
   private final int rows;
   private final int columns;
+  private final SortConf sortConf;
+  private final int samples;
+  private RangePartitioner partitioner;
+  private final TimingReport timing = new TimingReport();
+  private Long seed;
+  private long shuffleMemory = 256L * 1024 * 1024;
   private final String baseCrailpath;
   private final String reduDirName;
   private final String resultFileName;
+  private final String checksumFileName;
   private final ExecutorService es;
   private final CrailConfiguration conf;
   private final CrailStore store;
 
-  public Client(int workers, String basePath, int rows, int columns, int columnKey) throws Exception {
+  public Client(int mappers, int reducers, String basePath, int rows, SortConf sortConf, int samples) throws Exception {
     this.conf = CrailConfiguration.createConfigurationFromFile();
-    this.workers = workers;
+    this.mappers = mappers;
+    this.reducers = reducers;
     this.baseCrailpath = basePath;
     this.rows = rows;
-    this.columns = columns;
-    this.columnKey = columnKey;
-    this.es = Executors.newFixedThreadPool(workers);
+    this.columns = sortConf.getColumns();
+    this.columnKey = sortConf.getColumnKey();
+    this.sortConf = sortConf;
+    this.samples = samples;
+    this.es = Executors.newFixedThreadPool(Math.max(mappers, reducers));
     this.reduDirName = baseCrailpath + "-redu";
     this.resultFileName = baseCrailpath + "-result";
+    this.checksumFileName = baseCrailpath + "-checksum";
 
     this.store = CrailStore.newInstance(conf);
   }
 
   public void genData() throws Exception {
-    List<Future<?>> futures = new ArrayList<>(workers);
+    List<Future<?>> futures = new ArrayList<>(mappers);
+    List<GenPartition> partitions = new ArrayList<>(mappers);
 
+    Random random = seed == null ? new Random() : new Random(seed);
     String partName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < mappers; i++) {
       partName = baseCrailpath + "_part" + i;
-      futures.add(es.submit(new GenPartition(store, partName, rows, columns)));
+      GenPartition partition = new GenPartition(store, partName, rows, sortConf, random.nextLong(),
+          sortConf.getPartitionThreads());
+      partitions.add(partition);
+      futures.add(es.submit(partition));
     }
     for (Future<?> future : futures) {
       try {
@@ -70,31 +109,79 @@ public class Client {
         e.printStackTrace();
       }
     }
+
+    // keep the input checksum for checking the result of later runs
+    long checksum = 0;
+    for (GenPartition partition : partitions) {
+      checksum += partition.getChecksum();
+    }
+    if (store.lookup(checksumFileName).get() != null) {
+      store.delete(checksumFileName, false).get();
+    }
+    Properties props = new Properties();
+    props.setProperty("rows", Long.toString(mappers * (long) rows));
+    props.setProperty("checksum", Long.toString(checksum));
+    CrailProperties.store(store, checksumFileName, props);
+  }
+
+  /**
+   * @return Checksum of the generated input, or null if it was not generated
+   *         with checksums.
+   */
+  private Long loadChecksum() throws Exception {
+    Properties props = CrailProperties.load(store, checksumFileName);
+    if (props == null || props.getProperty("checksum") == null) {
+      return null;
+    }
+    return Long.parseLong(props.getProperty("checksum"));
   }
 
   public void createReduActions() throws Exception {
     store.create(reduDirName, CrailNodeType.DIRECTORY, CrailStorageClass.get(1),
                  CrailLocationClass.DEFAULT, false).get();
+    // actions load it on creation
+    sortConf.store(store, reduDirName + "/" + SortConf.FILE_NAME);
     String actionName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < reducers; i++) {
       actionName = reduDirName + "/group_" + i;
       store.create(actionName, CrailNodeType.OBJECT, CrailStorageClass.get(0),
                    CrailLocationClass.DEFAULT, false).get().asObject().getProxy()
            .create(ReduceAction.class, true);  // with interleaving
     }
+    for (int i = 0; i < sortConf.getAggregators(); i++) {
+      actionName = reduDirName + "/agg_" + i;
+      store.create(actionName, CrailNodeType.OBJECT, CrailStorageClass.get(0),
+                   CrailLocationClass.DEFAULT, false).get().asObject().getProxy()
+           .create(AggregateAction.class, true);  // with interleaving
+    }
   }
 
   public void triggerReadActions() throws Exception {
-    List<Future<?>> futures = new ArrayList<>(workers);
-    List<ActiveAsyncChannel> channels = new ArrayList<>(workers);
-    List<CrailStore> stores = new ArrayList<>(workers);
+    readTokens(reduDirName + "/group_%d", reducers);
+  }
+
+  /**
+   * Make the aggregate actions forward their last rows and close their
+   * streams to the reduce actions.
+   */
+  public void flushAggregators() throws Exception {
+    readTokens(reduDirName + "/agg_%d", sortConf.getAggregators());
+  }
+
+  /**
+   * Read the completion token of <code>count</code> actions in parallel.
+   */
+  private void readTokens(String actionsPattern, int count) throws Exception {
+    List<Future<?>> futures = new ArrayList<>(count);
+    List<ActiveAsyncChannel> channels = new ArrayList<>(count);
+    List<CrailStore> stores = new ArrayList<>(count);
 
     String actionName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < count; i++) {
       CrailStore s = CrailStore.newInstance(conf);
       stores.add(s);
 
-      actionName = reduDirName + "/group_" + i;
+      actionName = String.format(actionsPattern, i);
       ActiveAsyncChannel readableChannel = s.lookup(actionName).get()
                                             .asObject().getProxy().getReadableAsyncChannel();
       channels.add(readableChannel);
@@ -126,10 +213,107 @@ public class Client {
     });
   }
 
-  public void deleteReduActions() throws Exception {
+  /**
+   * Read the sorted rows streamed back by each reduce action, in parallel,
+   * and check that they are sorted within and across groups.
+   */
+  public void streamResults() throws Exception {
+    List<Future<ResultSummary>> futures = new ArrayList<>(reducers);
+    List<CrailStore> stores = new ArrayList<>(reducers);
+
     String actionName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < reducers; i++) {
+      CrailStore s = CrailStore.newInstance(conf);
+      stores.add(s);
+
       actionName = reduDirName + "/group_" + i;
+      ActiveReadableChannel readableChannel = s.lookup(actionName).get()
+                                               .asObject().getProxy().getReadableChannel();
+      futures.add(es.submit(() -> ResultSummary.read(
+          new RowReader(Channels.newInputStream(readableChannel), sortConf))));
+    }
+    List<ResultSummary> results = new ArrayList<>(reducers);
+    for (int i = 0; i < futures.size(); i++) {
+      ResultSummary summary = futures.get(i).get();
+      System.out.println("Stream group_" + i + ": " + summary);
+      results.add(summary);
+    }
+    stores.forEach(s -> {
+      try {
+        s.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+    ResultSummary.validate(results, mappers * (long) rows, loadChecksum());
+  }
+
+  /**
+   * In top-k mode, read the rows kept by each reduce action (streamed back,
+   * or from the result files) and merge them into the <code>limit</code> rows
+   * with the smallest keys.
+   */
+  public void mergeTop() throws Exception {
+    if (!sortConf.isStreamResult()) {
+      triggerReadActions();
+    }
+    List<Future<byte[]>> futures = new ArrayList<>(reducers);
+    List<CrailStore> stores = new ArrayList<>(reducers);
+    for (int i = 0; i < reducers; i++) {
+      InputStream in;
+      if (sortConf.isStreamResult()) {
+        CrailStore s = CrailStore.newInstance(conf);
+        stores.add(s);
+        in = Channels.newInputStream(s.lookup(reduDirName + "/group_" + i).get()
+                                      .asObject().getProxy().getReadableChannel());
+      } else {
+        CrailFile file = store.lookup(resultFileName + "/group_" + i).get().asFile();
+        in = file.getBufferedInputStream(file.getCapacity());
+      }
+      futures.add(es.submit(() -> readAll(in)));
+    }
+    // the heads are small, read them whole before merging
+    List<RowReader> heads = new ArrayList<>(reducers);
+    for (Future<byte[]> future : futures) {
+      heads.add(new RowReader(new ByteArrayInputStream(future.get()), sortConf));
+    }
+    stores.forEach(s -> {
+      try {
+        s.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    });
+
+    ByteArrayOutputStream topRows = new ByteArrayOutputStream();
+    long merged = new RowMerger(heads).mergeTo(buffer -> {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      topRows.write(bytes, 0, bytes.length);
+    }, sortConf.getLimit());
+    System.out.println("Merged top " + merged + " rows from " + reducers + " groups");
+    ResultSummary summary = ResultSummary.read(
+        new RowReader(new ByteArrayInputStream(topRows.toByteArray()), sortConf));
+    System.out.println("Top rows: " + summary);
+    ResultSummary.validate(Collections.singletonList(summary),
+        Math.min(sortConf.getLimit(), mappers * (long) rows), null);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[64 * 1024];
+    int read;
+    while ((read = in.read(buffer)) > 0) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  public void deleteReduActions() throws Exception {
+    String actionName;
+    for (int i = 0; i < reducers + sortConf.getAggregators(); i++) {
+      actionName = i < reducers ? reduDirName + "/group_" + i : reduDirName + "/agg_" + (i - reducers);
       try {
         store.lookup(actionName).get().asObject().getProxy().delete();
         store.delete(actionName, true).get();
@@ -160,19 +344,82 @@ public class Client {
     }
   }
 
+  /**
+   * Compute the split points between groups. With sampling, read
+   * <code>samples</code> keys from each partition in parallel and split at
+   * their quantiles; otherwise cut the int range into equal slices.
+   */
+  public void samplePartitions() throws Exception {
+    if (samples <= 0) {
+      partitioner = RangePartitioner.uniform(reducers);
+      return;
+    }
+    List<Future<int[]>> futures = new ArrayList<>(mappers);
+    for (int i = 0; i < mappers; i++) {
+      futures.add(es.submit(new KeySampler(store, baseCrailpath + "_part" + i, sortConf, samples)));
+    }
+    int[] allSamples = new int[0];
+    for (Future<int[]> future : futures) {
+      int[] keys = future.get();
+      int taken = allSamples.length;
+      allSamples = Arrays.copyOf(allSamples, taken + keys.length);
+      System.arraycopy(keys, 0, allSamples, taken, keys.length);
+    }
+    partitioner = RangePartitioner.fromSamples(allSamples, reducers);
+  }
+
+  /**
+   * Generate the same data on every run, each partition with its own seed
+   * drawn from <code>seed</code>.
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  public RangePartitioner getPartitioner() {
+    return partitioner;
+  }
+
+  /**
+   * @return Per-phase times of the mappers and reducers that ran.
+   */
+  public TimingReport getTiming() {
+    return timing;
+  }
+
+  /**
+   * Add the times saved by each reduce action when it was read.
+   */
+  public void loadReducerTimes() throws Exception {
+    for (int i = 0; i < reducers; i++) {
+      Properties props = CrailProperties.load(store, reduDirName + "/group_" + i + ReduceAction.METRICS_SUFFIX);
+      timing.add("reducer", props == null ? new PhaseTimes() : PhaseTimes.fromProperties(props));
+    }
+  }
+
   public void runMap() throws Exception {
-    List<Future<?>> futures = new ArrayList<>(workers);
-    List<CrailStore> stores = new ArrayList<>(workers);
+    List<Future<?>> futures = new ArrayList<>(mappers);
+    List<CrailStore> stores = new ArrayList<>(mappers);
+    List<Mapper> mapperList = new ArrayList<>(mappers);
+    ShuffleBufferPool bufferPool = new ShuffleBufferPool(SEND_BUFFER,
+        (int) (shuffleMemory / SEND_BUFFER), sortConf.getSendWindow());
 
     String partName;
     String groupsPattern;
-    for (int i = 0; i < workers; i++) {
+    String aggregatorName;
+    for (int i = 0; i < mappers; i++) {
       CrailStore s = CrailStore.newInstance(conf);
       stores.add(s);
 
       partName = baseCrailpath + "_part" + i;
       groupsPattern = reduDirName + "/group_%d";
-      futures.add(es.submit(new Mapper(s, partName, columnKey, groupsPattern, workers)));
+      // consecutive mappers share an aggregator, so each aggregator takes about
+      // mappers / aggregators streams and each group one per aggregator
+      aggregatorName = sortConf.getAggregators() > 0
+          ? reduDirName + "/agg_" + (int) ((long) i * sortConf.getAggregators() / mappers) : null;
+      Mapper mapper = new Mapper(s, partName, sortConf, groupsPattern, partitioner, bufferPool, aggregatorName);
+      mapperList.add(mapper);
+      futures.add(es.submit(mapper));
     }
     for (Future<?> future : futures) {
       try {
@@ -181,6 +428,9 @@ public class Client {
         e.printStackTrace();
       }
     }
+    for (Mapper mapper : mapperList) {
+      timing.add("mapper", mapper.getTimes());
+    }
     stores.forEach(s -> {
       try {
         s.close();
@@ -188,11 +438,23 @@ public class Client {
         e.printStackTrace();
       }
     });
+    System.out.println("Shuffle buffers: " + bufferPool);
+    if (sortConf.getAggregators() > 0) {
+      flushAggregators();
+    }
+  }
+
+  /**
+   * Memory shared by all mappers for the buffers they send to the reduce
+   * actions.
+   */
+  public void setShuffleMemory(long shuffleMemory) {
+    this.shuffleMemory = shuffleMemory;
   }
 
   public void deleteData() throws Exception {
     String partName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < mappers; i++) {
       try {
         partName = baseCrailpath + "_part" + i;
         store.delete(partName, true).get();
@@ -201,6 +463,12 @@ public class Client {
         // e.printStackTrace();
       }
     }
+    try {
+      store.delete(checksumFileName, false).get();
+    } catch (Exception e) {
+      System.out.println(e);
+      // e.printStackTrace();
+    }
   }
 
   public void close() {
@@ -219,41 +487,31 @@ public class Client {
     }
   }
 
+  /**
+   * Check the result files in parallel: each file must be sorted, follow the
+   * previous one, and together they must hold the generated rows.
+   */
   public void checkResult() throws Exception {
     System.out.println("\n\nChecking result is sorted...");
-    int previousKey = Integer.MIN_VALUE;
-    long nlines = 0;
-    for (int i = 0; i < workers; i++) {
+    List<Future<ResultSummary>> futures = new ArrayList<>(reducers);
+    for (int i = 0; i < reducers; i++) {
       CrailFile file = store.lookup(resultFileName + "/group_" + i).get().asFile();
       System.out.println("File " + file.getPath() + " is " + file.getCapacity());
-      CrailBufferedInputStream is = file.getBufferedInputStream(file.getCapacity());
-      try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-        String line = reader.readLine();
-        while (line != null) {
-          int currentKey = Integer.parseInt(line.split(",", columnKey + 2)[columnKey]);
-          if (currentKey < previousKey) {
-            System.out.println("Not sorted!!");
-            return;
-          }
-          previousKey = currentKey;
-          line = reader.readLine();
-          nlines++;
-        }
-      }
+      futures.add(es.submit(() -> ResultSummary.read(
+          new RowReader(file.getBufferedInputStream(file.getCapacity()), sortConf))));
     }
-    System.out.println("Sort OK!!");
-    long expectedLines = workers * (long) rows;
-    System.out.print("Expected lines " + expectedLines + " got " + nlines);
-    if (expectedLines == nlines) {
-      System.out.println(" OK");
-    } else {
-      System.out.println(" KO");
+    List<ResultSummary> results = new ArrayList<>(reducers);
+    for (Future<ResultSummary> future : futures) {
+      results.add(future.get());
     }
+    ResultSummary.validate(results, mappers * (long) rows, loadChecksum());
   }
 
   public static void main(String[] args) {
     // Defaults:
     int workers = 1;
+    Integer mappers = null;
+    Integer reducers = null;
     String filename = "/sort-data";
     int rows = 5000000;
     int columns = 10;
@@ -262,14 +520,46 @@ public class Client {
     boolean delete = false;
     boolean exclusive = false;
     boolean noCheck = false;
+    RowFormat format = RowFormat.TEXT;
+    int samples = 1000;
+    long presortBuffer = 0;
+    int partitionThreads = 1;
+    int sendWindow = 4;
+    int aggregators = 0;
+    int limit = 0;
+    long shuffleMemory = 256L * 1024 * 1024;
+    String distribution = "uniform";
+    Long seed = null;
+    String timingFile = null;
+    boolean stream = false;
+    boolean keepResultFile = true;
+    long memoryBudget = 0;
+    int spillClass = 1;
 
     Option helpOption = Option.builder("h").desc("show this help message").build();
-    Option workersOption = Option.builder("w").desc("number of workers [1..n]").hasArg().build();
+    Option workersOption = Option.builder("w").desc("number of workers, the default for mappers and reducers [1..n]").hasArg().build();
+    Option mappersOption = Option.builder("m").desc("number of mappers, one per partition [1..n]").longOpt("mappers").hasArg().build();
+    Option reducersOption = Option.builder("R").desc("number of reducers, one per result group [1..n]").longOpt("reducers").hasArg().build();
     Option columnKeyOption = Option.builder("k").desc("column index to use as sort key [0..c]").hasArg().build();
     Option fileOption = Option.builder("f").desc("base path for crail files").hasArg().build();
     Option generateOption = Option.builder("g").desc("generate partition files").build();
     Option rowsOption = Option.builder("r").desc("for generate: number of rows per partition [1..n]").hasArg().build();
-    Option columnsOption = Option.builder("c").desc("for generate: number of columns per row [1..n]").hasArg().build();
+    Option columnsOption = Option.builder("c").desc("number of columns per row (for generate and binary rows) [1..n]").hasArg().build();
+    Option binaryOption = Option.builder("b").desc("use fixed-width binary rows instead of text").longOpt("binary").build();
+    Option sampleOption = Option.builder("p").desc("keys sampled per partition to pick the group ranges, 0 for equal ranges [0..n]").longOpt("sample").hasArg().build();
+    Option memoryOption = Option.builder("M").desc("memory per reduce action before spilling sorted runs, in MiB (0 = no limit) [0..n]").longOpt("memory").hasArg().build();
+    Option spillClassOption = Option.builder().desc("Crail storage class for spilled runs").longOpt("spill-class").hasArg().build();
+    Option distributionOption = Option.builder().desc("for generate: key distribution, uniform, zipf[:exponent], normal[:stddev], sorted, reverse or few[:keys]").longOpt("dist").hasArg().build();
+    Option seedOption = Option.builder().desc("for generate: random seed").longOpt("seed").hasArg().build();
+    Option threadsOption = Option.builder("t").desc("threads generating or mapping each partition [1..n]").longOpt("threads").hasArg().build();
+    Option sendWindowOption = Option.builder().desc("send buffers of 256 KiB in flight per group for each mapper [1..n]").longOpt("send-window").hasArg().build();
+    Option shuffleMemoryOption = Option.builder().desc("send buffer memory shared by all mappers, in MiB [1..n]").longOpt("shuffle-memory").hasArg().build();
+    Option aggregatorsOption = Option.builder("A").desc("aggregate actions forwarding the mapper output to the reduce actions, about sqrt(workers) for many workers (0 = send directly) [0..n]").longOpt("aggregators").hasArg().build();
+    Option limitOption = Option.builder().desc("only keep the n rows with the smallest keys (0 = sort all rows) [0..n]").longOpt("limit").hasArg().build();
+    Option presortOption = Option.builder("P").desc("mapper buffer per group sorted before sending, in MiB (0 = send unsorted rows) [0..n]").longOpt("presort").hasArg().build();
+    Option streamOption = Option.builder("s").desc("stream the sorted rows back from the reduce actions").longOpt("stream").build();
+    Option noResultFileOption = Option.builder().desc("with --stream: do not write the result files").longOpt("no-result-file").build();
+    Option timingOption = Option.builder().desc("write the per-phase timing report as JSON to this local file instead of printing it").longOpt("timing-report").hasArg().build();
     Option deleteOption = Option.builder("d").desc("delete the generated partition files").build();
     Option exclusiveOption = Option.builder("x").desc("skip mapreduce (to only generate or eliminate data)").build();
     Option noCheckOption = Option.builder("z").desc("skip checking result").longOpt("noCheck").build();
@@ -277,11 +567,28 @@ public class Client {
     Options options = new Options();
     options.addOption(helpOption);
     options.addOption(workersOption);
+    options.addOption(mappersOption);
+    options.addOption(reducersOption);
     options.addOption(columnKeyOption);
     options.addOption(fileOption);
     options.addOption(generateOption);
     options.addOption(rowsOption);
     options.addOption(columnsOption);
+    options.addOption(binaryOption);
+    options.addOption(sampleOption);
+    options.addOption(memoryOption);
+    options.addOption(spillClassOption);
+    options.addOption(distributionOption);
+    options.addOption(seedOption);
+    options.addOption(threadsOption);
+    options.addOption(sendWindowOption);
+    options.addOption(shuffleMemoryOption);
+    options.addOption(aggregatorsOption);
+    options.addOption(limitOption);
+    options.addOption(presortOption);
+    options.addOption(streamOption);
+    options.addOption(noResultFileOption);
+    options.addOption(timingOption);
     options.addOption(deleteOption);
     options.addOption(exclusiveOption);
     options.addOption(noCheckOption);
@@ -299,6 +606,12 @@ public class Client {
       if (line.hasOption(workersOption.getOpt())) {
         workers = Integer.parseInt(line.getOptionValue(workersOption.getOpt()));
       }
+      if (line.hasOption(mappersOption.getOpt())) {
+        mappers = Integer.parseInt(line.getOptionValue(mappersOption.getOpt()));
+      }
+      if (line.hasOption(reducersOption.getOpt())) {
+        reducers = Integer.parseInt(line.getOptionValue(reducersOption.getOpt()));
+      }
       if (line.hasOption(columnKeyOption.getOpt())) {
         columnKey = Integer.parseInt(line.getOptionValue(columnKeyOption.getOpt()));
       }
@@ -312,9 +625,59 @@ public class Client {
       if (line.hasOption(columnsOption.getOpt())) {
         columns = Integer.parseInt(line.getOptionValue(columnsOption.getOpt()));
       }
+      if (line.hasOption(binaryOption.getOpt())) {
+        format = RowFormat.BINARY;
+      }
+      if (line.hasOption(sampleOption.getOpt())) {
+        samples = Integer.parseInt(line.getOptionValue(sampleOption.getOpt()));
+      }
+      if (line.hasOption(memoryOption.getOpt())) {
+        memoryBudget = Long.parseLong(line.getOptionValue(memoryOption.getOpt())) * 1024 * 1024;
+      }
+      if (line.hasOption(spillClassOption.getLongOpt())) {
+        spillClass = Integer.parseInt(line.getOptionValue(spillClassOption.getLongOpt()));
+      }
+      if (line.hasOption(distributionOption.getLongOpt())) {
+        distribution = line.getOptionValue(distributionOption.getLongOpt());
+      }
+      if (line.hasOption(seedOption.getLongOpt())) {
+        seed = Long.parseLong(line.getOptionValue(seedOption.getLongOpt()));
+      }
+      if (line.hasOption(threadsOption.getOpt())) {
+        partitionThreads = Integer.parseInt(line.getOptionValue(threadsOption.getOpt()));
+        if (partitionThreads < 1) {
+          System.err.println("Threads per partition must be at least 1.");
+          System.exit(-1);
+        }
+      }
+      if (line.hasOption(sendWindowOption.getLongOpt())) {
+        sendWindow = Integer.parseInt(line.getOptionValue(sendWindowOption.getLongOpt()));
+      }
+      if (line.hasOption(shuffleMemoryOption.getLongOpt())) {
+        shuffleMemory = Long.parseLong(line.getOptionValue(shuffleMemoryOption.getLongOpt())) * 1024 * 1024;
+      }
+      if (line.hasOption(aggregatorsOption.getOpt())) {
+        aggregators = Integer.parseInt(line.getOptionValue(aggregatorsOption.getOpt()));
+      }
+      if (line.hasOption(limitOption.getLongOpt())) {
+        limit = Integer.parseInt(line.getOptionValue(limitOption.getLongOpt()));
+      }
+      if (line.hasOption(presortOption.getOpt())) {
+        presortBuffer = Long.parseLong(line.getOptionValue(presortOption.getOpt())) * 1024 * 1024;
+      }
+      stream = line.hasOption(streamOption.getOpt());
+      keepResultFile = !line.hasOption(noResultFileOption.getLongOpt());
+      if (line.hasOption(timingOption.getLongOpt())) {
+        timingFile = line.getOptionValue(timingOption.getLongOpt());
+      }
       delete = line.hasOption(deleteOption.getOpt());
       exclusive = line.hasOption(exclusiveOption.getOpt());
       noCheck = line.hasOption(noCheckOption.getOpt());
+      if (aggregators > 0 && presortBuffer > 0) {
+        // presorted segments are one stream each, they cannot be merged into aggregator streams
+        System.err.println("Aggregators cannot be combined with presorting.");
+        System.exit(-1);
+      }
 
     } catch (ParseException e) {
       System.err.println("Could not parse options.");
@@ -325,31 +688,69 @@ public class Client {
     //////////////////////////////////////////////////////////
     //////////////////////////////////////////////////////////
 
+    if (mappers == null) {
+      mappers = workers;
+    }
+    if (reducers == null) {
+      reducers = workers;
+    }
+
     try {
-      Client client = new Client(workers, filename, rows, columns, columnKey);
+      SortConf sortConf = new SortConf(format, columns, columnKey);
+      sortConf.setMemoryBudget(memoryBudget);
+      sortConf.setSpillStorageClass(spillClass);
+      sortConf.setPresortBuffer(presortBuffer);
+      sortConf.setPartitionThreads(partitionThreads);
+      sortConf.setSendWindow(sendWindow);
+      sortConf.setAggregators(aggregators);
+      sortConf.setLimit(limit);
+      KeyDistribution.parse(distribution, sortConf);
+      sortConf.setStreamResult(stream);
+      sortConf.setKeepResultFile(keepResultFile);
+      Client client = new Client(mappers, reducers, filename, rows, sortConf, samples);
+      if (seed != null) {
+        client.setSeed(seed);
+      }
+      client.setShuffleMemory(shuffleMemory);
 
-      long stt = System.currentTimeMillis();
+      long stt = System.nanoTime();
       if (generate) {
         client.genData();
       }
-      long sot = System.currentTimeMillis();
+      long sot = System.nanoTime();
       // SORT
       if (!exclusive) {
-        client.createResultFile();
+        client.samplePartitions();
+      }
+      long spt = System.nanoTime();
+      if (!exclusive) {
+        if (sortConf.isKeepResultFile()) {
+          client.createResultFile();
+        }
         client.createReduActions();
         client.runMap();
       }
-      long mpt = System.currentTimeMillis();
+      long mpt = System.nanoTime();
       System.out.println("\nMAP DONE\n");
       if (!exclusive) {
-        client.triggerReadActions();
+        if (limit > 0) {
+          client.mergeTop();
+        } else if (stream) {
+          client.streamResults();
+        } else {
+          client.triggerReadActions();
+        }
       }
-      long edt = System.currentTimeMillis();
+      long edt = System.nanoTime();
       if (!exclusive) {
+        client.loadReducerTimes();
         client.deleteReduActions();
-        if (!noCheck)
-          client.checkResult();
-        client.deleteResultFile();
+        if (sortConf.isKeepResultFile()) {
+          // in top-k mode the merged top rows are checked instead
+          if (!noCheck && limit == 0)
+            client.checkResult();
+          client.deleteResultFile();
+        }
       }
 
       if (delete) {
@@ -359,11 +760,43 @@ public class Client {
       client.close();
 
       StringBuilder setup = new StringBuilder("\nSort setup:\n");
-      setup.append(String.format("Workers: %d%n", workers));
+      setup.append(String.format("Mappers: %d, reducers: %d%n", mappers, reducers));
       setup.append(String.format("Base path: %s%n", filename));
       setup.append(String.format("Sorting key: %s%n", columnKey));
+      setup.append(String.format("Row format: %s%n", format));
+      if (memoryBudget > 0) {
+        setup.append(String.format("Reducer memory: %d MiB, spill to storage class %d%n",
+            memoryBudget / 1024 / 1024, spillClass));
+      }
+      if (partitionThreads > 1) {
+        setup.append(String.format("Threads per partition: %d%n", partitionThreads));
+      }
+      setup.append(String.format("Shuffle buffers: %d MiB shared, %d in flight per group%n",
+          shuffleMemory / 1024 / 1024, sendWindow));
+      if (aggregators > 0) {
+        setup.append(String.format("Aggregators: %d (%d mappers each)%n", aggregators,
+            (mappers + aggregators - 1) / aggregators));
+      }
+      if (limit > 0) {
+        setup.append(String.format("Keep the %d rows with the smallest keys.%n", limit));
+      }
+      if (presortBuffer > 0) {
+        setup.append(String.format("Mapper presort buffer: %d MiB per group%n", presortBuffer / 1024 / 1024));
+      }
+      if (stream) {
+        setup.append(String.format("Stream result from reduce actions%s.%n",
+            sortConf.isKeepResultFile() ? " and write result files" : ""));
+      }
+      if (!exclusive) {
+        if (samples > 0) {
+          setup.append(String.format("Sampled %d keys per partition.%n", samples));
+        }
+        setup.append(String.format("Split points: %s%n", client.getPartitioner()));
+      }
       if (generate) {
-        setup.append(String.format("Generate %d partitions of %d rows and %d columns.%n", workers, rows, columns));
+        setup.append(String.format("Key distribution: %s (%s)%s%n", sortConf.getKeyDistribution(),
+            sortConf.getDistributionParameter(), seed == null ? "" : ", seed " + seed));
+        setup.append(String.format("Generate %d partitions of %d rows and %d columns.%n", mappers, rows, columns));
       }
       if (delete) {
         setup.append("Delete generated data.\n");
@@ -378,17 +811,31 @@ public class Client {
 
       long totalElapsed = edt - stt;
       long genElapsed = sot - stt;
-      long mapElapsed = mpt - sot;
+      long sampleElapsed = spt - sot;
+      long mapElapsed = mpt - spt;
       long reduceElapsed = edt - mpt;
       String report = "Time report (s):\n" +
-          String.format("Total: %.3f%n", (double) totalElapsed / 1000) +
-          String.format("Generate data: %.3f%n", (double) genElapsed / 1000) +
-          String.format("Sort: %.3f%n", (double) (edt - sot) / 1000) +
-          String.format(" | Map-Reduce: %.3f%n", (double) mapElapsed / 1000) +
-          String.format(" | Write result: %.3f%n", (double) reduceElapsed / 1000);
+          String.format("Total: %.3f%n", totalElapsed / 1e9) +
+          String.format("Generate data: %.3f%n", genElapsed / 1e9) +
+          String.format("Sort: %.3f%n", (edt - sot) / 1e9) +
+          String.format(" | Sample: %.3f%n", sampleElapsed / 1e9) +
+          String.format(" | Map-Reduce: %.3f%n", mapElapsed / 1e9) +
+          String.format(" | Write result: %.3f%n", reduceElapsed / 1e9);
 
       System.out.println(report);
 
+      TimingReport timing = client.getTiming();
+      timing.addClientPhase("generate", genElapsed);
+      timing.addClientPhase("sample", sampleElapsed);
+      timing.addClientPhase("mapReduce", mapElapsed);
+      timing.addClientPhase("writeResult", reduceElapsed);
+      timing.addClientPhase("total", totalElapsed);
+      if (timingFile != null) {
+        Files.write(Paths.get(timingFile), timing.toJson().getBytes(StandardCharsets.UTF_8));
+      } else {
+        System.out.println("Timing report (ns):\n" + timing.toJson());
+      }
+
     } catch (Exception e) {
       e.printStackTrace();
     }
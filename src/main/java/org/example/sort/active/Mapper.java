@@ -1,44 +1,73 @@
 package org.example.sort.active;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-
-import org.apache.crail.CrailBufferedInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.crail.CrailFile;
 import org.apache.crail.CrailObjectProxy;
 import org.apache.crail.CrailStore;
+import org.apache.crail.core.ActiveWritableChannel;
+import org.example.sort.PartitionRange;
+import org.example.sort.Phase;
+import org.example.sort.PhaseTimes;
+import org.example.sort.RangePartitioner;
+import org.example.sort.RowReader;
+import org.example.sort.SortBuffer;
+import org.example.sort.SortConf;
 
+/**
+ * Sends the rows of one partition to the reduce action of their group.
+ * <p>
+ * Rows are sent through the asynchronous channel of each action with a
+ * bounded window of buffers in flight, so sending overlaps with reading and
+ * partitioning. Send buffers come from a pool shared by all mappers. With an
+ * aggregator, rows go to it in frames tagged with their group instead, and
+ * the mapper opens a single stream.
+ * <p>
+ * With several map threads, the partition is split into byte ranges read by
+ * one thread each. Threads collect rows per group in small local buffers
+ * and append them whole to the shared group senders. These staging buffers
+ * share a fixed budget per mapper, so their memory does not grow with
+ * threads times groups.
+ */
 public class Mapper implements Runnable {
+  private static final int RANGE_BUFFER = 64 * 1024;
+  private static final long STAGING_MEMORY = 16 * 1024 * 1024;
 
   // private CrailStore store;
   private int workers;
-  private int columnKey;
-  private long[] groupBuckets;
+  private SortConf conf;
+  private RangePartitioner partitioner;
+  private final PhaseTimes times = new PhaseTimes();
   private CrailFile partFile;
   private CrailObjectProxy[] groupActions;
+  private ShuffleBufferPool bufferPool;
+  private AsyncSender[] senders;
+  private CrailObjectProxy aggregatorAction;
+  private AsyncSender aggregator;
+  // staging buffer per group and map thread, smaller with many of them
+  private int stagingSize = RANGE_BUFFER;
+
+  public Mapper(CrailStore store, String partitionFile, SortConf conf,
+      String groupsFilePattern, RangePartitioner partitioner, ShuffleBufferPool bufferPool) throws Exception {
+    this(store, partitionFile, conf, groupsFilePattern, partitioner, bufferPool, null);
+  }
 
-  public Mapper(CrailStore store, String partitionFile, int columnKey,
-      String groupsFilePattern, int workers) throws Exception {
+  /**
+   * @param aggregatorFile Aggregate action that forwards the rows to the
+   *                       groups, or null to send to the groups directly.
+   */
+  public Mapper(CrailStore store, String partitionFile, SortConf conf, String groupsFilePattern,
+      RangePartitioner partitioner, ShuffleBufferPool bufferPool, String aggregatorFile) throws Exception {
     // this.store = store;
-    this.workers = workers;
-    this.columnKey = columnKey;
-
-    groupBuckets = new long[workers];
-    long totalRange = (long) Integer.MAX_VALUE - Integer.MIN_VALUE;
-    long groupLength = totalRange / workers;
-    long currLimit = Integer.MIN_VALUE;
-    for (int i = 0; i < groupBuckets.length; i++) {
-      groupBuckets[i] = currLimit;
-      currLimit += groupLength;
-    }
-    // System.out.println("Range: " + Integer.MIN_VALUE + " - " +
-    // Integer.MAX_VALUE);
-    // System.out.println(Arrays.toString(groupBuckets));
+    this.bufferPool = bufferPool;
+    this.workers = partitioner.groups();
+    this.conf = conf;
+    this.partitioner = partitioner;
 
     partFile = store.lookup(partitionFile).get().asFile();
     groupActions = new CrailObjectProxy[workers];
@@ -46,42 +75,198 @@ public class Mapper implements Runnable {
       String filename = String.format(groupsFilePattern, i);
       groupActions[i] = store.lookup(filename).get().asObject().getProxy();
     }
+    if (aggregatorFile != null) {
+      aggregatorAction = store.lookup(aggregatorFile).get().asObject().getProxy();
+    }
   }
 
   @Override
   public void run() {
     try {
-      CrailBufferedInputStream cbis = partFile.getBufferedInputStream(partFile.getCapacity());
-      BufferedReader reader = new BufferedReader(new InputStreamReader(cbis));
+      if (aggregatorAction != null) {
+        aggregator = bufferPool.sender(aggregatorAction.getWritableAsyncChannel());
+      } else if (!conf.isPresorted()) {
+        senders = new AsyncSender[workers];
+        for (int i = 0; i < groupActions.length; i++) {
+          senders[i] = bufferPool.sender(groupActions[i].getWritableAsyncChannel());
+        }
+      }
+      PartitionRange[] ranges = PartitionRange.split(partFile.getCapacity(), conf, conf.getPartitionThreads());
+      stagingSize = (int) Math.min(RANGE_BUFFER, STAGING_MEMORY / ((long) ranges.length * workers));
+      if (ranges.length == 1) {
+        mapRange(ranges[0]);
+      } else {
+        mapParallel(ranges);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      // also on failure, so the groups see the end of the opened streams
+      long closeStart = System.nanoTime();
+      closeSenders();
+      times.add(Phase.SEND, System.nanoTime() - closeStart);
+    }
+  }
 
-      BufferedWriter[] writers = new BufferedWriter[workers];
-      for (int i = 0; i < groupActions.length; i++) {
-        OutputStream outputStream = new BufferedOutputStream(groupActions[i].getOutputStream(), 1048576);
-        writers[i] = new BufferedWriter(new OutputStreamWriter(outputStream));
+  /**
+   * Map each range on its own thread. If a range fails, the other threads
+   * are interrupted and waited for before returning.
+   */
+  private void mapParallel(PartitionRange[] ranges) throws Exception {
+    ExecutorService threads = Executors.newFixedThreadPool(ranges.length);
+    try {
+      List<Future<?>> futures = new ArrayList<>(ranges.length);
+      for (PartitionRange range : ranges) {
+        futures.add(threads.submit(() -> {
+          mapRange(range);
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
       }
+    } finally {
+      threads.shutdownNow();
+      threads.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
 
-      reader.lines().forEach(line -> {
-        int sortKey = Integer.parseInt(line.split(",", columnKey + 2)[columnKey]);
-        int group;
-        for (group = workers - 1; group >= 0; group--) {
-          if (sortKey >= groupBuckets[group]) {
-            break;
-          }
+  /**
+   * Close every opened sender, even if another one fails.
+   */
+  private void closeSenders() {
+    List<AsyncSender> opened = new ArrayList<>();
+    if (aggregator != null) {
+      opened.add(aggregator);
+    }
+    if (senders != null) {
+      for (AsyncSender sender : senders) {
+        if (sender != null) {
+          opened.add(sender);
         }
-        // System.out.println("Key " + sortKey + " sorted to group " + group);
-        try {
-          writers[group].write(line);
-          writers[group].newLine();
-        } catch (IOException e) {
-          e.printStackTrace();
+      }
+    }
+    for (AsyncSender sender : opened) {
+      try {
+        sender.close();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * @return Time spent in each phase, summed over the map threads. Complete
+   *         once the mapper has run.
+   */
+  public PhaseTimes getTimes() {
+    return times;
+  }
+
+  /**
+   * Map the rows of one range and add its times to the mapper's times.
+   */
+  private void mapRange(PartitionRange range) throws Exception {
+    long start = System.nanoTime();
+    PhaseTimes rangeTimes = new PhaseTimes();
+    RowReader reader = range.open(partFile, conf);
+    if (conf.isPresorted()) {
+      mapPresorted(reader, rangeTimes);
+    } else {
+      partitionRows(reader, rangeTimes);
+    }
+    long elapsed = System.nanoTime() - start;
+    rangeTimes.add(Phase.READ, reader.getReadNanos());
+    // parsing and bucketing are what is left, timing them per row would cost more than they do
+    rangeTimes.add(Phase.PARTITION, elapsed - reader.getReadNanos()
+        - rangeTimes.get(Phase.SEND) - rangeTimes.get(Phase.SORT));
+    times.addAll(rangeTimes);
+  }
+
+  /**
+   * Stage the rows per group and send them in chunks of up to
+   * {@link #stagingSize} bytes. Staging buffers are only allocated for the
+   * groups that get rows, and rows larger than them are sent directly.
+   */
+  private void partitionRows(RowReader reader, PhaseTimes rangeTimes) throws Exception {
+    byte[][] buffers = new byte[workers][];
+    int[] filled = new int[workers];
+    while (reader.next()) {
+      int sortKey = reader.key();
+      int group = partitioner.getGroup(sortKey);
+      // System.out.println("Key " + sortKey + " sorted to group " + group);
+      int length = reader.length();
+      if (filled[group] > 0 && filled[group] + length > stagingSize) {
+        send(rangeTimes, group, buffers[group], 0, filled[group]);
+        filled[group] = 0;
+      }
+      if (length > stagingSize) {
+        send(rangeTimes, group, reader.buffer(), reader.offset(), length);
+      } else {
+        if (buffers[group] == null) {
+          buffers[group] = new byte[stagingSize];
         }
-      });
+        System.arraycopy(reader.buffer(), reader.offset(), buffers[group], filled[group], length);
+        filled[group] += length;
+      }
+    }
+    reader.close();
 
-      for (int i = 0; i < writers.length; i++) {
-        writers[i].close();
+    for (int i = 0; i < workers; i++) {
+      if (filled[i] > 0) {
+        send(rangeTimes, i, buffers[i], 0, filled[i]);
       }
-    } catch (Exception e) {
-      e.printStackTrace();
     }
   }
+
+  private void send(PhaseTimes rangeTimes, int group, byte[] rows, int offset, int length) throws Exception {
+    long start = System.nanoTime();
+    if (aggregator != null) {
+      aggregator.writeFrame(group, rows, offset, length);
+    } else {
+      senders[group].write(rows, offset, length);
+    }
+    rangeTimes.add(Phase.SEND, System.nanoTime() - start);
+  }
+
+  /**
+   * Buffer the rows of each group and send them as sorted segments, one
+   * write stream per segment, so the reduce actions only have to merge.
+   */
+  private void mapPresorted(RowReader reader, PhaseTimes rangeTimes) throws Exception {
+    long segmentSize = conf.getPresortBuffer();
+    SortBuffer[] buffers = new SortBuffer[workers];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = new SortBuffer(conf.rowWidth(), (int) Math.min(8 * 1024 * 1024, segmentSize));
+    }
+
+    while (reader.next()) {
+      int group = partitioner.getGroup(reader.key());
+      SortBuffer buffer = buffers[group];
+      buffer.add(reader.key(), reader.buffer(), reader.offset(), reader.length());
+      if (buffer.rowBytes() >= segmentSize) {
+        sendSegment(rangeTimes, group, buffer);
+      }
+    }
+    reader.close();
+
+    for (int i = 0; i < buffers.length; i++) {
+      if (!buffers[i].isEmpty()) {
+        sendSegment(rangeTimes, i, buffers[i]);
+      }
+      buffers[i].release();
+    }
+  }
+
+  private void sendSegment(PhaseTimes rangeTimes, int group, SortBuffer buffer) throws Exception {
+    long start = System.nanoTime();
+    buffer.sort();
+    long sorted = System.nanoTime();
+    rangeTimes.add(Phase.SORT, sorted - start);
+    ActiveWritableChannel channel = groupActions[group].getWritableChannel();
+    buffer.writeTo(channel::write);
+    channel.close();
+    buffer.clear();
+    rangeTimes.add(Phase.SEND, System.nanoTime() - sorted);
+  }
 }
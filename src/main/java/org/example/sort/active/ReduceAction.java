@@ -1,19 +1,14 @@
 package org.example.sort.active;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
-import java.util.AbstractMap.SimpleEntry;
-import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.crail.CrailAction;
 import org.apache.crail.CrailBufferedOutputStream;
@@ -21,74 +16,330 @@ import org.apache.crail.CrailFile;
 import org.apache.crail.CrailLocationClass;
 import org.apache.crail.CrailNodeType;
 import org.apache.crail.CrailStorageClass;
+import org.example.CrailProperties;
+import org.example.sort.BufferSink;
+import org.example.sort.Phase;
+import org.example.sort.PhaseTimes;
+import org.example.sort.RowMerger;
+import org.example.sort.RowReader;
+import org.example.sort.RowSource;
+import org.example.sort.SortBuffer;
+import org.example.sort.SortConf;
+import org.example.sort.TopRows;
 
+/**
+ * Sorts all rows written to it and saves them to the group's result file
+ * when read. In stream mode the sorted rows are sent to the reader instead of
+ * a completion token, and the result file is optional.
+ * <p>
+ * The action is created with interleaving, so several mappers write at the
+ * same time. Each write stream fills its own buffer and sorts it when the
+ * stream ends, which spreads the sort work over the map phase. Reading the
+ * action only has to k-way merge the sorted runs. When the mappers presort
+ * their rows, each stream is a sorted segment that is kept as it arrives.
+ * <p>
+ * With a memory budget, runs that do not fit are spilled to temporary Crail
+ * files and merged from there. The largest run in memory is spilled first,
+ * and a stream only spills its own run once it holds an eighth of the
+ * budget, so spills stay few and large. Small streams may go over the budget
+ * by up to that much each.
+ * <p>
+ * With a limit, only the rows with the smallest keys are kept, in a bounded
+ * {@link TopRows} heap per write stream that is folded into the action's
+ * heap when the stream ends. Reading returns just those rows.
+ * <p>
+ * The time spent in each phase is saved next to the action, in
+ * {@link #METRICS_SUFFIX}, before the read completes.
+ */
 public class ReduceAction extends CrailAction {
+  public static final String METRICS_SUFFIX = "-metrics";
+  private static final String SPILL_SUFFIX = "-spill";
+  private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+  private static final long REPORT_BYTES = 1024 * 1024;
+  // a stream spills its own run from budget / MIN_SPILL_PARTS bytes on
+  private static final int MIN_SPILL_PARTS = 8;
+
   private CrailFile resultFile;
-  private int columnKey;
+  private SortConf conf;
 
-  private List<SimpleEntry<Integer, String>> allLines;
+  // sorted runs, in memory (rows off-heap) or spilled to crail files
+  private List<SortBuffer> memoryRuns;
+  private List<CrailFile> spills;
+  private AtomicLong memoryUsed;
+  private AtomicInteger spillCount;
+  // rows with the smallest keys in top-k mode, null to sort all rows
+  private TopRows top;
+  private PhaseTimes times;
 
 
   @Override
   public void onCreate() {
-    columnKey = 0; // TODO: pass it
+    conf = new SortConf();
     try {
-      resultFile = this.fs.create(this.self.getPath().replace("redu", "result"),
-          CrailNodeType.DATAFILE, CrailStorageClass.get(1),
-          CrailLocationClass.DEFAULT, true).get().asFile();
+      String path = this.self.getPath();
+      conf = SortConf.load(this.fs, path.substring(0, path.lastIndexOf('/') + 1) + SortConf.FILE_NAME);
+      if (conf.isKeepResultFile()) {
+        resultFile = this.fs.create(path.replace("redu", "result"),
+            CrailNodeType.DATAFILE, CrailStorageClass.get(1),
+            CrailLocationClass.DEFAULT, true).get().asFile();
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
-    allLines = new ArrayList<>();
+    memoryRuns = new ArrayList<>();
+    spills = new ArrayList<>();
+    memoryUsed = new AtomicLong();
+    spillCount = new AtomicInteger();
+    times = new PhaseTimes();
+    if (conf.getLimit() > 0) {
+      top = new TopRows(conf.getLimit());
+    }
   }
 
   @Override
   public void onRead(WritableByteChannel channel) {
+    long start = System.nanoTime();
     try {
-      CrailBufferedOutputStream cbos = resultFile.getBufferedOutputStream(1024 * 1024 * 500);
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(cbos));
-      // for (List<String> list : sort.values()) {
-      // for (String line : list) {
-      // writer.write(line);
-      // writer.newLine();
-      // }
-      allLines.sort(Comparator.comparingInt(SimpleEntry::getKey));
-      allLines.forEach(entry -> {
-        try {
-          writer.write(entry.getValue());
-          writer.newLine();
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      });
-      // allLines.stream()
-      // .sorted(Comparator.comparingInt(SimpleEntry::getKey))
-      // .forEachOrdered(entry -> {
-      // try {
-      // writer.write(entry.getValue());
-      // writer.newLine();
-      // } catch (IOException e) {
-      // e.printStackTrace();
-      // }
-      // });
-      writer.close();
+      List<RowSource> runs = new ArrayList<>(memoryRuns.size() + spills.size());
+      for (CrailFile spill : spills) {
+        runs.add(new RowReader(spill.getBufferedInputStream(spill.getCapacity()), conf));
+      }
+      for (SortBuffer run : memoryRuns) {
+        runs.add(run.cursor());
+      }
+      if (top != null) {
+        runs.add(top.cursor());
+      }
+      System.out.println("Merging " + runs.size() + " runs (" + spills.size() + " spilled) for " + self.getPath());
+      CrailBufferedOutputStream cbos = null;
+      if (resultFile != null) {
+        cbos = resultFile.getBufferedOutputStream(1024 * 1024 * 500);
+      }
+      new RowMerger(runs).mergeTo(resultSink(cbos, channel));
+      if (cbos != null) {
+        cbos.close();
+      }
+      deleteSpills();
+      memoryRuns.forEach(SortBuffer::release);
+      memoryRuns.clear();
+      memoryUsed.set(0);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    times.add(Phase.WRITE, System.nanoTime() - start);
+    try {
+      // before completing the read, so the client finds them once it is done
+      CrailProperties.store(this.fs, self.getPath() + METRICS_SUFFIX, times.toProperties());
     } catch (Exception e) {
       e.printStackTrace();
     }
     try {
-      channel.write(ByteBuffer.allocate(Integer.BYTES));
+      if (!conf.isStreamResult()) {
+        channel.write(ByteBuffer.allocate(Integer.BYTES));
+      }
       channel.close();
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * @return Where the merged rows go: the result file, the reader's channel,
+   *         or both.
+   */
+  private BufferSink resultSink(CrailBufferedOutputStream cbos, WritableByteChannel channel) {
+    if (!conf.isStreamResult()) {
+      return cbos::write;
+    }
+    if (cbos == null) {
+      return channel::write;
+    }
+    return buffer -> {
+      cbos.write(buffer.duplicate());
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    };
+  }
+
   @Override
   public void onWrite(ReadableByteChannel channel) {
-    Stream<String> lines = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel))).lines();
-    lines
-        .map(line -> new SimpleEntry<>(Integer.parseInt(line.split(",", columnKey + 2)[columnKey]), line))
-        .forEach(entry -> allLines.add(entry));
+    long start = System.nanoTime();
+    PhaseTimes streamTimes = new PhaseTimes();
+    RowReader reader = new RowReader(Channels.newInputStream(channel), conf);
+    if (top != null) {
+      keepTop(reader);
+    } else {
+      bufferRun(reader, streamTimes);
+    }
+    streamTimes.add(Phase.RECEIVE, reader.getReadNanos());
+    streamTimes.add(Phase.PARSE, System.nanoTime() - start - reader.getReadNanos()
+        - streamTimes.get(Phase.SORT) - streamTimes.get(Phase.WRITE));
+    times.addAll(streamTimes);
+  }
+
+  /**
+   * Buffer the rows of one stream as a sorted run, spilling when the action
+   * runs out of memory. If the stream fails, its run is released and its
+   * memory given back to the budget.
+   */
+  private void bufferRun(RowReader reader, PhaseTimes streamTimes) {
+    long budget = conf.getMemoryBudget();
+    int chunkSize = budget > 0 ? (int) Math.min(CHUNK_SIZE, Math.max(1024 * 1024, budget / 8)) : CHUNK_SIZE;
+    long minSpill = Math.max(REPORT_BYTES, budget / MIN_SPILL_PARTS);
+    SortBuffer run = new SortBuffer(conf.rowWidth(), chunkSize);
+    // share of memoryUsed accounted to this stream
+    long reported = 0;
+    // set once the run belongs to memoryRuns
+    boolean kept = false;
+    try {
+      while (reader.next()) {
+        run.add(reader.key(), reader.buffer(), reader.offset(), reader.length());
+        if (run.bytesUsed() - reported >= REPORT_BYTES) {
+          long total = memoryUsed.addAndGet(run.bytesUsed() - reported);
+          reported = run.bytesUsed();
+          if (budget > 0 && total >= budget) {
+            reported = makeRoom(run, reported, minSpill, streamTimes);
+          }
+        }
+      }
+      if (run.isEmpty()) {
+        return;
+      }
+      long used = run.bytesUsed();
+      memoryUsed.addAndGet(used - reported);
+      reported = used;
+      // the run is complete, spill it if it is the largest left
+      while (budget > 0 && memoryUsed.get() >= budget && !run.isEmpty()) {
+        reported = makeRoom(run, reported, 0, streamTimes);
+      }
+      if (!run.isEmpty()) {
+        long sortStart = System.nanoTime();
+        run.sort();
+        streamTimes.add(Phase.SORT, System.nanoTime() - sortStart);
+        synchronized (memoryRuns) {
+          memoryRuns.add(run);
+        }
+        kept = true;
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      if (!kept) {
+        run.release();
+        memoryUsed.addAndGet(-reported);
+      }
+    }
+  }
+
+  /**
+   * Spill to get back under the budget: the largest sorted run kept in
+   * memory if it is larger than this stream's run, else this stream's run if
+   * it holds at least <code>minSpill</code> bytes. Otherwise nothing is
+   * spilled and the stream keeps buffering.
+   *
+   * @param reported Memory accounted to this stream's run.
+   * @return The memory still accounted to this stream's run.
+   */
+  private long makeRoom(SortBuffer run, long reported, long minSpill, PhaseTimes streamTimes) throws Exception {
+    SortBuffer largest = null;
+    synchronized (memoryRuns) {
+      for (SortBuffer kept : memoryRuns) {
+        if (largest == null || kept.bytesUsed() > largest.bytesUsed()) {
+          largest = kept;
+        }
+      }
+      if (largest != null && largest.bytesUsed() > reported) {
+        memoryRuns.remove(largest);
+      } else {
+        largest = null;
+      }
+    }
+    if (largest != null) {
+      long bytes = largest.bytesUsed();
+      try {
+        spill(largest, streamTimes);
+      } catch (Exception e) {
+        synchronized (memoryRuns) {
+          memoryRuns.add(largest);
+        }
+        throw e;
+      }
+      memoryUsed.addAndGet(-bytes);
+      return reported;
+    }
+    if (reported >= minSpill) {
+      spill(run, streamTimes);
+      memoryUsed.addAndGet(-reported);
+      return 0;
+    }
+    return reported;
+  }
+
+  /**
+   * Keep the rows of one stream with the smallest keys, then fold them into
+   * the rows kept by the action.
+   */
+  private void keepTop(RowReader reader) {
+    TopRows streamTop = new TopRows(conf.getLimit());
+    try {
+      while (reader.next()) {
+        streamTop.offer(reader.key(), reader.buffer(), reader.offset(), reader.length());
+      }
+      reader.close();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    synchronized (top) {
+      top.addAll(streamTop);
+    }
+  }
+
+  @Override
+  public void onDelete() {
+    deleteSpills();
+    super.onDelete();
+  }
+
+  /**
+   * Sort the rows of <code>run</code>, write them as a new spilled run and
+   * release the buffer's memory.
+   */
+  private void spill(SortBuffer run, PhaseTimes streamTimes) throws Exception {
+    long start = System.nanoTime();
+    String spillName = self.getPath() + SPILL_SUFFIX + spillCount.getAndIncrement();
+    CrailFile spill = this.fs.create(spillName, CrailNodeType.DATAFILE,
+        CrailStorageClass.get(conf.getSpillStorageClass()), CrailLocationClass.DEFAULT, false).get().asFile();
+    CrailBufferedOutputStream cbos = spill.getBufferedOutputStream(run.rowBytes());
+    long sortStart = System.nanoTime();
+    run.sort();
+    long sorted = System.nanoTime();
+    run.writeTo(cbos::write);
+    cbos.close();
+    synchronized (spills) {
+      spills.add(spill);
+    }
+    run.release();
+    streamTimes.add(Phase.SORT, sorted - sortStart);
+    streamTimes.add(Phase.WRITE, System.nanoTime() - start - (sorted - sortStart));
+  }
+
+  private void deleteSpills() {
+    synchronized (spills) {
+      for (CrailFile spill : spills) {
+        try {
+          this.fs.delete(spill.getPath(), false).get();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+      spills.clear();
+    }
   }
 
 }
@@ -0,0 +1,209 @@
+package org.example.sort.active;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.crail.core.ActiveAsyncChannel;
+
+/**
+ * Bounded pool of direct send buffers shared by all the mappers of a client.
+ * <p>
+ * Without it each mapper holds buffers for every group, so memory grows with
+ * the square of the workers. Here buffers are only taken while they hold
+ * rows, and never more than the capacity. The pool lock only guards the
+ * buffer accounting. When the pool is empty, the caller reaps finished writes
+ * of all senders, flushes the sender holding the most data (partly filled
+ * buffers included) and waits for its oldest write outside the lock, which is
+ * counted as a stall.
+ */
+public class ShuffleBufferPool {
+  // buffers being filled are sent without a signal, so waiting callers look again this often
+  private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final int bufferSize;
+  private final int capacity;
+  private final int window;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  private final Deque<ByteBuffer> free = new ArrayDeque<>();
+  private final List<AsyncSender> senders = new ArrayList<>();
+  private int allocated;
+  private int inUse;
+  private int peakInUse;
+  private long acquired;
+  private long stalls;
+  private long stallNanos;
+
+  /**
+   * @param bufferSize Size of each buffer.
+   * @param capacity   Number of buffers in the pool.
+   * @param window     Writes in flight per sender.
+   */
+  public ShuffleBufferPool(int bufferSize, int capacity, int window) {
+    this.bufferSize = bufferSize;
+    this.capacity = Math.max(1, capacity);
+    this.window = window;
+  }
+
+  AsyncSender sender(ActiveAsyncChannel channel) {
+    AsyncSender sender = new AsyncSender(this, channel, window);
+    lock.lock();
+    try {
+      senders.add(sender);
+    } finally {
+      lock.unlock();
+    }
+    return sender;
+  }
+
+  /**
+   * Take a buffer, waiting for one to come back if the pool is empty: the
+   * sender holding the most data is flushed first, and the caller waits for
+   * its oldest write outside the pool lock. Must not be called with a window
+   * lock held.
+   */
+  ByteBuffer acquire() throws IOException {
+    ByteBuffer buffer = poll();
+    if (buffer != null) {
+      return buffer;
+    }
+    long start = System.nanoTime();
+    boolean waited = false;
+    try {
+      while (true) {
+        List<AsyncSender> current;
+        lock.lock();
+        try {
+          current = new ArrayList<>(senders);
+        } finally {
+          lock.unlock();
+        }
+        for (AsyncSender sender : current) {
+          sender.reapFinished();
+        }
+        buffer = poll();
+        if (buffer != null) {
+          return buffer;
+        }
+
+        AsyncSender fullest = null;
+        long fullestBytes = -1;
+        for (AsyncSender sender : current) {
+          if (sender.canFlush()) {
+            long bytes = sender.pendingBytes();
+            if (bytes > fullestBytes) {
+              fullest = sender;
+              fullestBytes = bytes;
+            }
+          }
+        }
+        waited = true;
+        if (fullest != null) {
+          fullest.flushOldest();
+          continue;
+        }
+
+        // every buffer is being filled by a writer copying rows, which sends
+        // it when full without releasing it, so look again after a while
+        lock.lock();
+        try {
+          if (free.isEmpty()) {
+            released.awaitNanos(WAIT_NANOS);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for a send buffer");
+        } finally {
+          lock.unlock();
+        }
+      }
+    } finally {
+      if (waited) {
+        lock.lock();
+        try {
+          stalls++;
+          stallNanos += System.nanoTime() - start;
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return A cleared buffer, or <code>null</code> if all of the capacity is
+   *         in use.
+   */
+  private ByteBuffer poll() {
+    lock.lock();
+    try {
+      ByteBuffer buffer = free.poll();
+      if (buffer == null && allocated < capacity) {
+        allocated++;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+      }
+      if (buffer != null) {
+        buffer.clear();
+        acquired++;
+        inUse++;
+        peakInUse = Math.max(peakInUse, inUse);
+      }
+      return buffer;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Give a buffer back and wake a waiting caller.
+   */
+  void release(ByteBuffer buffer) {
+    lock.lock();
+    try {
+      inUse--;
+      free.add(buffer);
+      released.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getStalls() {
+    lock.lock();
+    try {
+      return stalls;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getStallNanos() {
+    lock.lock();
+    try {
+      return stallNanos;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return String.format("%d of %d buffers of %d KiB allocated, peak in use %d, %d acquired, "
+          + "%d stalls (%.3f s)", allocated, capacity, bufferSize / 1024, peakInUse,
+          acquired, stalls, stallNanos / 1e9);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -1,9 +1,13 @@
 package org.example.sort.baseline;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -17,48 +21,72 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.crail.CrailBufferedInputStream;
 import org.apache.crail.CrailFile;
 import org.apache.crail.CrailLocationClass;
 import org.apache.crail.CrailNodeType;
 import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
 import org.apache.crail.conf.CrailConfiguration;
+import org.example.CrailProperties;
 import org.example.sort.GenPartition;
+import org.example.sort.KeyDistribution;
+import org.example.sort.KeySampler;
+import org.example.sort.RangePartitioner;
+import org.example.sort.ResultSummary;
+import org.example.sort.RowFormat;
+import org.example.sort.RowReader;
+import org.example.sort.SortConf;
+import org.example.sort.TimingReport;
 
 public class Client {
-  private int workers;
+  private int mappers;
+  private int reducers;
   private int columnKey;
   private int rows;
   private int columns;
+  private SortConf sortConf;
+  private int samples;
+  private RangePartitioner partitioner;
+  private final TimingReport timing = new TimingReport();
+  private Long seed;
   private String baseCrailpath;
   private String reduDirName;
   private String resultFileName;
+  private String checksumFileName;
   private ExecutorService es;
   private CrailConfiguration conf;
   private CrailStore store;
 
-  public Client(int workers, String basePath, int rows, int columns, int columnKey) throws Exception {
+  public Client(int mappers, int reducers, String basePath, int rows, SortConf sortConf, int samples) throws Exception {
     this.conf = CrailConfiguration.createConfigurationFromFile();
-    this.workers = workers;
+    this.mappers = mappers;
+    this.reducers = reducers;
     this.baseCrailpath = basePath;
     this.rows = rows;
-    this.columns = columns;
-    this.columnKey = columnKey;
+    this.columns = sortConf.getColumns();
+    this.columnKey = sortConf.getColumnKey();
+    this.sortConf = sortConf;
+    this.samples = samples;
     this.es = Executors.newFixedThreadPool(16);
     this.reduDirName = baseCrailpath + "-redu";
     this.resultFileName = baseCrailpath + "-result";
+    this.checksumFileName = baseCrailpath + "-checksum";
 
     this.store = CrailStore.newInstance(conf);
   }
 
   public void genData() throws Exception {
-    List<Future<?>> futures = new ArrayList<>(workers);
+    List<Future<?>> futures = new ArrayList<>(mappers);
+    List<GenPartition> partitions = new ArrayList<>(mappers);
 
+    Random random = seed == null ? new Random() : new Random(seed);
     String partName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < mappers; i++) {
       partName = baseCrailpath + "_part" + i;
-      futures.add(es.submit(new GenPartition(store, partName, rows, columns)));
+      GenPartition partition = new GenPartition(store, partName, rows, sortConf, random.nextLong(),
+          sortConf.getPartitionThreads());
+      partitions.add(partition);
+      futures.add(es.submit(partition));
     }
     for (Future<?> future : futures) {
       try {
@@ -67,13 +95,38 @@ public class Client {
         e.printStackTrace();
       }
     }
+
+    // keep the input checksum for checking the result of later runs
+    long checksum = 0;
+    for (GenPartition partition : partitions) {
+      checksum += partition.getChecksum();
+    }
+    if (store.lookup(checksumFileName).get() != null) {
+      store.delete(checksumFileName, false).get();
+    }
+    Properties props = new Properties();
+    props.setProperty("rows", Long.toString(mappers * (long) rows));
+    props.setProperty("checksum", Long.toString(checksum));
+    CrailProperties.store(store, checksumFileName, props);
+  }
+
+  /**
+   * @return Checksum of the generated input, or null if it was not generated
+   *         with checksums.
+   */
+  private Long loadChecksum() throws Exception {
+    Properties props = CrailProperties.load(store, checksumFileName);
+    if (props == null || props.getProperty("checksum") == null) {
+      return null;
+    }
+    return Long.parseLong(props.getProperty("checksum"));
   }
 
   public void createReduFiles() throws Exception {
     store.create(reduDirName, CrailNodeType.DIRECTORY, CrailStorageClass.get(1),
         CrailLocationClass.DEFAULT, false).get();
     String multifileName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < reducers; i++) {
       multifileName = reduDirName + "/group_" + i;
       store.create(multifileName, CrailNodeType.MULTIFILE, CrailStorageClass.get(1),
           CrailLocationClass.DEFAULT, false).get();
@@ -87,7 +140,7 @@ public class Client {
 
   public void deleteReduFiles() throws Exception {
     String multifileName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < reducers; i++) {
       multifileName = reduDirName + "/group_" + i;
       try {
         store.delete(multifileName, true).get();
@@ -113,18 +166,64 @@ public class Client {
     }
   }
 
+  /**
+   * Compute the split points between groups. With sampling, read
+   * <code>samples</code> keys from each partition in parallel and split at
+   * their quantiles; otherwise cut the int range into equal slices.
+   */
+  public void samplePartitions() throws Exception {
+    if (samples <= 0) {
+      partitioner = RangePartitioner.uniform(reducers);
+      return;
+    }
+    List<Future<int[]>> futures = new ArrayList<>(mappers);
+    for (int i = 0; i < mappers; i++) {
+      futures.add(es.submit(new KeySampler(store, baseCrailpath + "_part" + i, sortConf, samples)));
+    }
+    int[] allSamples = new int[0];
+    for (Future<int[]> future : futures) {
+      int[] keys = future.get();
+      int taken = allSamples.length;
+      allSamples = Arrays.copyOf(allSamples, taken + keys.length);
+      System.arraycopy(keys, 0, allSamples, taken, keys.length);
+    }
+    partitioner = RangePartitioner.fromSamples(allSamples, reducers);
+  }
+
+  /**
+   * Generate the same data on every run, each partition with its own seed
+   * drawn from <code>seed</code>.
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  public RangePartitioner getPartitioner() {
+    return partitioner;
+  }
+
+  /**
+   * @return Per-phase times of the mappers and reducers that ran.
+   */
+  public TimingReport getTiming() {
+    return timing;
+  }
+
   public void runMap() throws Exception {
-    List<Future<?>> futures = new ArrayList<>(workers);
-    List<CrailStore> stores = new ArrayList<>(workers);
+    List<Future<?>> futures = new ArrayList<>(mappers);
+    List<CrailStore> stores = new ArrayList<>(mappers);
 
+    List<Mapper> mapperList = new ArrayList<>(mappers);
     String partName, groupsPattern;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < mappers; i++) {
       CrailStore s = CrailStore.newInstance(conf);
       stores.add(s);
 
       partName = baseCrailpath + "_part" + i;
       groupsPattern = reduDirName + "/group_%d/part_" + i;
-      futures.add(es.submit(new Mapper(s, partName, columnKey, groupsPattern, workers)));
+      Mapper mapper = new Mapper(s, partName, sortConf, groupsPattern, partitioner);
+      mapperList.add(mapper);
+      futures.add(es.submit(mapper));
     }
     for (Future<?> future : futures) {
       try {
@@ -133,6 +232,9 @@ public class Client {
         e.printStackTrace();
       }
     }
+    for (Mapper mapper : mapperList) {
+      timing.add("mapper", mapper.getTimes());
+    }
     stores.forEach(s -> {
       try {
         s.close();
@@ -143,16 +245,19 @@ public class Client {
   }
 
   public void runReduce() throws Exception {
-    List<Future<?>> futures = new ArrayList<>(workers);
-    List<CrailStore> stores = new ArrayList<>(workers);
+    List<Future<?>> futures = new ArrayList<>(reducers);
+    List<CrailStore> stores = new ArrayList<>(reducers);
 
+    List<Reducer> reducerList = new ArrayList<>(reducers);
     String reduMultifile;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < reducers; i++) {
       CrailStore s = CrailStore.newInstance(conf);
       stores.add(s);
 
       reduMultifile = reduDirName + "/group_" + i;
-      futures.add(es.submit(new Reducer(s, columnKey, reduMultifile, resultFileName + "/r" + i, workers)));
+      Reducer reducer = new Reducer(s, sortConf, reduMultifile, resultFileName + "/r" + i, mappers);
+      reducerList.add(reducer);
+      futures.add(es.submit(reducer));
     }
     for (Future<?> future : futures) {
       try {
@@ -161,6 +266,9 @@ public class Client {
         e.printStackTrace();
       }
     }
+    for (Reducer reducer : reducerList) {
+      timing.add("reducer", reducer.getTimes());
+    }
     stores.forEach(s -> {
       try {
         s.close();
@@ -172,7 +280,7 @@ public class Client {
 
   public void deleteData() throws Exception {
     String partName;
-    for (int i = 0; i < workers; i++) {
+    for (int i = 0; i < mappers; i++) {
       try {
         partName = baseCrailpath + "_part" + i;
         store.delete(partName, true).get();
@@ -181,6 +289,12 @@ public class Client {
         // e.printStackTrace();
       }
     }
+    try {
+      store.delete(checksumFileName, false).get();
+    } catch (Exception e) {
+      System.out.println(e);
+      // e.printStackTrace();
+    }
   }
 
   public void close() {
@@ -199,41 +313,31 @@ public class Client {
     }
   }
 
+  /**
+   * Check the result files in parallel: each file must be sorted, follow the
+   * previous one, and together they must hold the generated rows.
+   */
   public void checkResult() throws Exception {
     System.out.println("\n\nChecking result is sorted...");
-    int previousKey = Integer.MIN_VALUE;
-    long nlines = 0;
-    for (int i = 0; i < workers; i++) {
+    List<Future<ResultSummary>> futures = new ArrayList<>(reducers);
+    for (int i = 0; i < reducers; i++) {
       CrailFile file = store.lookup(resultFileName + "/r" + i).get().asFile();
       System.out.println("File " + file.getPath() + " is " + file.getCapacity());
-      CrailBufferedInputStream is = file.getBufferedInputStream(file.getCapacity());
-      try (BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
-        String line = reader.readLine();
-        while (line != null) {
-          int currentKey = Integer.parseInt(line.split(",", columnKey + 2)[columnKey]);
-          if (currentKey < previousKey) {
-            System.out.println("Not sorted!!");
-            return;
-          }
-          previousKey = currentKey;
-          line = reader.readLine();
-          nlines++;
-        }
-      }
+      futures.add(es.submit(() -> ResultSummary.read(
+          new RowReader(file.getBufferedInputStream(file.getCapacity()), sortConf))));
     }
-    System.out.println("Sort OK!!");
-    long expectedLines = workers * (long) rows;
-    System.out.print("Expected lines " + expectedLines + " got " + nlines);
-    if (expectedLines == nlines) {
-      System.out.println(" OK");
-    } else {
-      System.out.println(" KO");
+    List<ResultSummary> results = new ArrayList<>(reducers);
+    for (Future<ResultSummary> future : futures) {
+      results.add(future.get());
     }
+    ResultSummary.validate(results, mappers * (long) rows, loadChecksum());
   }
 
   public static void main(String[] args) {
     // Defaults:
     int workers = 1;
+    Integer mappers = null;
+    Integer reducers = null;
     String filename = "/sort-data";
     int rows = 5000000;
     int columns = 10;
@@ -242,14 +346,30 @@ public class Client {
     boolean delete = false;
     boolean exclusive = false;
     boolean noCheck = false;
+    RowFormat format = RowFormat.TEXT;
+    int samples = 1000;
+    long presortBuffer = 0;
+    int partitionThreads = 1;
+    String distribution = "uniform";
+    Long seed = null;
+    String timingFile = null;
 
     Option helpOption = Option.builder("h").desc("show this help message").build();
-    Option workersOption = Option.builder("w").desc("number of workers [1..n]").hasArg().build();
+    Option workersOption = Option.builder("w").desc("number of workers, the default for mappers and reducers [1..n]").hasArg().build();
+    Option mappersOption = Option.builder("m").desc("number of mappers, one per partition [1..n]").longOpt("mappers").hasArg().build();
+    Option reducersOption = Option.builder("R").desc("number of reducers, one per result group [1..n]").longOpt("reducers").hasArg().build();
     Option columnKeyOption = Option.builder("k").desc("column index to use as sort key [0..c]").hasArg().build();
     Option fileOption = Option.builder("f").desc("base path for crail files").hasArg().build();
     Option generateOption = Option.builder("g").desc("generate partition files").build();
     Option rowsOption = Option.builder("r").desc("for generate: number of rows per partition [1..n]").hasArg().build();
-    Option columnsOption = Option.builder("c").desc("for generate: number of columns per row [1..n]").hasArg().build();
+    Option columnsOption = Option.builder("c").desc("number of columns per row (for generate and binary rows) [1..n]").hasArg().build();
+    Option binaryOption = Option.builder("b").desc("use fixed-width binary rows instead of text").longOpt("binary").build();
+    Option sampleOption = Option.builder("p").desc("keys sampled per partition to pick the group ranges, 0 for equal ranges [0..n]").longOpt("sample").hasArg().build();
+    Option distributionOption = Option.builder().desc("for generate: key distribution, uniform, zipf[:exponent], normal[:stddev], sorted, reverse or few[:keys]").longOpt("dist").hasArg().build();
+    Option seedOption = Option.builder().desc("for generate: random seed").longOpt("seed").hasArg().build();
+    Option threadsOption = Option.builder("t").desc("threads generating or mapping each partition [1..n]").longOpt("threads").hasArg().build();
+    Option presortOption = Option.builder("P").desc("mapper buffer per group sorted before sending, in MiB (0 = send unsorted rows) [0..n]").longOpt("presort").hasArg().build();
+    Option timingOption = Option.builder().desc("write the per-phase timing report as JSON to this local file instead of printing it").longOpt("timing-report").hasArg().build();
     Option deleteOption = Option.builder("d").desc("delete the generated partition files").build();
     Option exclusiveOption = Option.builder("x").desc("skip mapreduce (to only generate or eliminate data)").build();
     Option noCheckOption = Option.builder("z").desc("skip checking result").longOpt("noCheck").build();
@@ -257,11 +377,20 @@ public class Client {
     Options options = new Options();
     options.addOption(helpOption);
     options.addOption(workersOption);
+    options.addOption(mappersOption);
+    options.addOption(reducersOption);
     options.addOption(columnKeyOption);
     options.addOption(fileOption);
     options.addOption(generateOption);
     options.addOption(rowsOption);
     options.addOption(columnsOption);
+    options.addOption(binaryOption);
+    options.addOption(sampleOption);
+    options.addOption(distributionOption);
+    options.addOption(seedOption);
+    options.addOption(threadsOption);
+    options.addOption(presortOption);
+    options.addOption(timingOption);
     options.addOption(deleteOption);
     options.addOption(exclusiveOption);
     options.addOption(noCheckOption);
@@ -279,6 +408,12 @@ public class Client {
       if (line.hasOption(workersOption.getOpt())) {
         workers = Integer.parseInt(line.getOptionValue(workersOption.getOpt()));
       }
+      if (line.hasOption(mappersOption.getOpt())) {
+        mappers = Integer.parseInt(line.getOptionValue(mappersOption.getOpt()));
+      }
+      if (line.hasOption(reducersOption.getOpt())) {
+        reducers = Integer.parseInt(line.getOptionValue(reducersOption.getOpt()));
+      }
       if (line.hasOption(columnKeyOption.getOpt())) {
         columnKey = Integer.parseInt(line.getOptionValue(columnKeyOption.getOpt()));
       }
@@ -292,6 +427,31 @@ public class Client {
       if (line.hasOption(columnsOption.getOpt())) {
         columns = Integer.parseInt(line.getOptionValue(columnsOption.getOpt()));
       }
+      if (line.hasOption(binaryOption.getOpt())) {
+        format = RowFormat.BINARY;
+      }
+      if (line.hasOption(sampleOption.getOpt())) {
+        samples = Integer.parseInt(line.getOptionValue(sampleOption.getOpt()));
+      }
+      if (line.hasOption(distributionOption.getLongOpt())) {
+        distribution = line.getOptionValue(distributionOption.getLongOpt());
+      }
+      if (line.hasOption(seedOption.getLongOpt())) {
+        seed = Long.parseLong(line.getOptionValue(seedOption.getLongOpt()));
+      }
+      if (line.hasOption(threadsOption.getOpt())) {
+        partitionThreads = Integer.parseInt(line.getOptionValue(threadsOption.getOpt()));
+        if (partitionThreads < 1) {
+          System.err.println("Threads per partition must be at least 1.");
+          System.exit(-1);
+        }
+      }
+      if (line.hasOption(presortOption.getOpt())) {
+        presortBuffer = Long.parseLong(line.getOptionValue(presortOption.getOpt())) * 1024 * 1024;
+      }
+      if (line.hasOption(timingOption.getLongOpt())) {
+        timingFile = line.getOptionValue(timingOption.getLongOpt());
+      }
       delete = line.hasOption(deleteOption.getOpt());
       exclusive = line.hasOption(exclusiveOption.getOpt());
       noCheck = line.hasOption(noCheckOption.getOpt());
@@ -305,26 +465,44 @@ public class Client {
     //////////////////////////////////////////////////////////
     //////////////////////////////////////////////////////////
 
+    if (mappers == null) {
+      mappers = workers;
+    }
+    if (reducers == null) {
+      reducers = workers;
+    }
+
     try {
-      Client client = new Client(workers, filename, rows, columns, columnKey);
+      SortConf sortConf = new SortConf(format, columns, columnKey);
+      sortConf.setPresortBuffer(presortBuffer);
+      sortConf.setPartitionThreads(partitionThreads);
+      KeyDistribution.parse(distribution, sortConf);
+      Client client = new Client(mappers, reducers, filename, rows, sortConf, samples);
+      if (seed != null) {
+        client.setSeed(seed);
+      }
 
-      long stt = System.currentTimeMillis();
+      long stt = System.nanoTime();
       if (generate) {
         client.genData();
       }
-      long sot = System.currentTimeMillis();
+      long sot = System.nanoTime();
       // SORT
+      if (!exclusive) {
+        client.samplePartitions();
+      }
+      long spt = System.nanoTime();
       if (!exclusive) {
         client.createReduFiles();
         client.runMap();
       }
-      long mpt = System.currentTimeMillis();
+      long mpt = System.nanoTime();
       System.out.println("\nMAP DONE\n");
       if (!exclusive) {
         client.createResultFile();
         client.runReduce();
       }
-      long edt = System.currentTimeMillis();
+      long edt = System.nanoTime();
       if (!exclusive) {
         client.deleteReduFiles();
         if (!noCheck)
@@ -339,11 +517,26 @@ public class Client {
       client.close();
 
       StringBuilder setup = new StringBuilder("\nSort setup:\n");
-      setup.append(String.format("Workers: %d\n", workers));
+      setup.append(String.format("Mappers: %d, reducers: %d\n", mappers, reducers));
       setup.append(String.format("Base path: %s\n", filename));
       setup.append(String.format("Sorting key: %s\n", columnKey));
+      setup.append(String.format("Row format: %s\n", format));
+      if (partitionThreads > 1) {
+        setup.append(String.format("Threads per partition: %d\n", partitionThreads));
+      }
+      if (presortBuffer > 0) {
+        setup.append(String.format("Mapper presort buffer: %d MiB per group\n", presortBuffer / 1024 / 1024));
+      }
+      if (!exclusive) {
+        if (samples > 0) {
+          setup.append(String.format("Sampled %d keys per partition.\n", samples));
+        }
+        setup.append(String.format("Split points: %s\n", client.getPartitioner()));
+      }
       if (generate) {
-        setup.append(String.format("Generate %d partitions of %d rows and %d columns.\n", workers, rows, columns));
+        setup.append(String.format("Key distribution: %s (%s)%s\n", sortConf.getKeyDistribution(),
+            sortConf.getDistributionParameter(), seed == null ? "" : ", seed " + seed));
+        setup.append(String.format("Generate %d partitions of %d rows and %d columns.\n", mappers, rows, columns));
       }
       if (delete) {
         setup.append("Delete generated data.\n");
@@ -358,17 +551,31 @@ public class Client {
 
       long totalElapsed = edt - stt;
       long genElapsed = sot - stt;
-      long mapElapsed = mpt - sot;
+      long sampleElapsed = spt - sot;
+      long mapElapsed = mpt - spt;
       long reduceElapsed = edt - mpt;
       StringBuilder report = new StringBuilder("Time report (s):\n");
-      report.append(String.format("Total: %.3f\n", (double) totalElapsed / 1000));
-      report.append(String.format("Generate data: %.3f\n", (double) genElapsed / 1000));
-      report.append(String.format("Sort: %.3f\n", (double) (edt - sot) / 1000));
-      report.append(String.format(" | Map: %.3f\n", (double) mapElapsed / 1000));
-      report.append(String.format(" | Reduce: %.3f\n", (double) reduceElapsed / 1000));
+      report.append(String.format("Total: %.3f\n", totalElapsed / 1e9));
+      report.append(String.format("Generate data: %.3f\n", genElapsed / 1e9));
+      report.append(String.format("Sort: %.3f\n", (edt - sot) / 1e9));
+      report.append(String.format(" | Sample: %.3f\n", sampleElapsed / 1e9));
+      report.append(String.format(" | Map: %.3f\n", mapElapsed / 1e9));
+      report.append(String.format(" | Reduce: %.3f\n", reduceElapsed / 1e9));
 
       System.out.println(report);
 
+      TimingReport timing = client.getTiming();
+      timing.addClientPhase("generate", genElapsed);
+      timing.addClientPhase("sample", sampleElapsed);
+      timing.addClientPhase("map", mapElapsed);
+      timing.addClientPhase("reduce", reduceElapsed);
+      timing.addClientPhase("total", totalElapsed);
+      if (timingFile != null) {
+        Files.write(Paths.get(timingFile), timing.toJson().getBytes(StandardCharsets.UTF_8));
+      } else {
+        System.out.println("Timing report (ns):\n" + timing.toJson());
+      }
+
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -1,47 +1,73 @@
 package org.example.sort.baseline;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.crail.CrailBufferedInputStream;
 import org.apache.crail.CrailBufferedOutputStream;
 import org.apache.crail.CrailFile;
 import org.apache.crail.CrailLocationClass;
 import org.apache.crail.CrailNodeType;
 import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
+import org.example.sort.PartitionRange;
+import org.example.sort.Phase;
+import org.example.sort.PhaseTimes;
+import org.example.sort.RangePartitioner;
+import org.example.sort.RowReader;
+import org.example.sort.SortBuffer;
+import org.example.sort.SortConf;
 
+/**
+ * Writes the rows of one partition to the file of their group.
+ * <p>
+ * With several map threads, the partition is split into byte ranges read by
+ * one thread each. Threads collect rows per group in small local buffers and
+ * append them whole to the shared group files. These staging buffers are
+ * allocated for the groups that get rows and share a fixed budget per
+ * mapper, like in the active mapper.
+ */
 public class Mapper implements Runnable {
+  private static final int RANGE_BUFFER = 64 * 1024;
+  private static final long STAGING_MEMORY = 16 * 1024 * 1024;
 
-  // private CrailStore store;
+  private CrailStore store;
+  private String groupsFilePattern;
   private int workers;
-  private int columnKey;
-  private long[] groupBuckets;
+  private SortConf conf;
+  private RangePartitioner partitioner;
+  private final PhaseTimes times = new PhaseTimes();
   private CrailFile partFile;
   private CrailFile[] groupFiles;
+  private OutputStream[] outputs;
+  private AtomicInteger[] segments;
+  // staging buffer per group and map thread, smaller with many of them
+  private int stagingSize = RANGE_BUFFER;
 
-  public Mapper(CrailStore store, String partitionFile, int columnKey,
-      String groupsFilePattern, int workers) throws Exception {
-    // this.store = store;
-    this.workers = workers;
-    this.columnKey = columnKey;
-
-    groupBuckets = new long[workers];
-    long totalRange = (long) Integer.MAX_VALUE - Integer.MIN_VALUE;
-    long groupLength = totalRange / workers;
-    long currLimit = Integer.MIN_VALUE;
-    for (int i = 0; i < groupBuckets.length; i++) {
-      groupBuckets[i] = currLimit;
-      currLimit += groupLength;
-    }
-    // System.out.println("Range: " + Integer.MIN_VALUE + " - " +
-    // Integer.MAX_VALUE);
-    // System.out.println(Arrays.toString(groupBuckets));
+  public Mapper(CrailStore store, String partitionFile, SortConf conf,
+      String groupsFilePattern, RangePartitioner partitioner) throws Exception {
+    this.store = store;
+    this.groupsFilePattern = groupsFilePattern;
+    this.workers = partitioner.groups();
+    this.conf = conf;
+    this.partitioner = partitioner;
 
     partFile = store.lookup(partitionFile).get().asFile();
+    if (conf.isPresorted()) {
+      // segment files are created as the buffers fill up
+      segments = new AtomicInteger[workers];
+      for (int i = 0; i < segments.length; i++) {
+        segments[i] = new AtomicInteger();
+      }
+      return;
+    }
     groupFiles = new CrailFile[workers];
     for (int i = 0; i < groupFiles.length; i++) {
       String filename = String.format(groupsFilePattern, i);
@@ -53,39 +79,188 @@ public class Mapper implements Runnable {
   @Override
   public void run() {
     try {
-      CrailBufferedInputStream cbis = partFile.getBufferedInputStream(partFile.getCapacity());
-      BufferedReader reader = new BufferedReader(new InputStreamReader(cbis));
+      if (!conf.isPresorted()) {
+        outputs = new OutputStream[workers];
+        for (int i = 0; i < groupFiles.length; i++) {
+          CrailBufferedOutputStream cbos = groupFiles[i].getBufferedOutputStream(partFile.getCapacity()/workers);
+          outputs[i] = new BufferedOutputStream(cbos, 64 * 1024);
+        }
+      }
+      PartitionRange[] ranges = PartitionRange.split(partFile.getCapacity(), conf, conf.getPartitionThreads());
+      stagingSize = (int) Math.min(RANGE_BUFFER, STAGING_MEMORY / ((long) ranges.length * workers));
+      if (ranges.length == 1) {
+        mapRange(ranges[0]);
+      } else {
+        mapParallel(ranges);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      // also on failure, so the groups see the end of the opened streams
+      long closeStart = System.nanoTime();
+      closeOutputs();
+      times.add(Phase.SEND, System.nanoTime() - closeStart);
+    }
+  }
+
+  /**
+   * Map each range on its own thread. If a range fails, the other threads
+   * are interrupted and waited for before returning.
+   */
+  private void mapParallel(PartitionRange[] ranges) throws Exception {
+    ExecutorService threads = Executors.newFixedThreadPool(ranges.length);
+    try {
+      List<Future<?>> futures = new ArrayList<>(ranges.length);
+      for (PartitionRange range : ranges) {
+        futures.add(threads.submit(() -> {
+          mapRange(range);
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      threads.shutdownNow();
+      threads.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
 
-      BufferedWriter[] writers = new BufferedWriter[workers];
-      for (int i = 0; i < groupFiles.length; i++) {
-        CrailBufferedOutputStream cbos = groupFiles[i].getBufferedOutputStream(partFile.getCapacity()/workers);
-        writers[i] = new BufferedWriter(new OutputStreamWriter(cbos));
+  /**
+   * Close every opened group file, even if another one fails.
+   */
+  private void closeOutputs() {
+    if (outputs == null) {
+      return;
+    }
+    for (OutputStream output : outputs) {
+      if (output == null) {
+        continue;
       }
+      try {
+        output.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
 
-      reader.lines().forEach(line -> {
-        int sortKey = Integer.parseInt(line.split(",", columnKey + 2)[columnKey]);
-        int group;
-        for (group = workers - 1; group >= 0; group--) {
-          if (sortKey >= groupBuckets[group]) {
-            break;
-          }
-        }
-        // System.out.println("Key " + sortKey + " sorted to group " + group);
-        try {
-          writers[group].write(line);
-          writers[group].newLine();
-        } catch (IOException e) {
-          e.printStackTrace();
+  /**
+   * @return Time spent in each phase, summed over the map threads. Complete
+   *         once the mapper has run.
+   */
+  public PhaseTimes getTimes() {
+    return times;
+  }
+
+  /**
+   * Map the rows of one range and add its times to the mapper's times.
+   */
+  private void mapRange(PartitionRange range) throws Exception {
+    long start = System.nanoTime();
+    PhaseTimes rangeTimes = new PhaseTimes();
+    RowReader reader = range.open(partFile, conf);
+    if (conf.isPresorted()) {
+      mapPresorted(reader, rangeTimes);
+    } else {
+      partitionRows(reader, rangeTimes);
+    }
+    long elapsed = System.nanoTime() - start;
+    rangeTimes.add(Phase.READ, reader.getReadNanos());
+    // parsing and bucketing are what is left, timing them per row would cost more than they do
+    rangeTimes.add(Phase.PARTITION, elapsed - reader.getReadNanos()
+        - rangeTimes.get(Phase.SEND) - rangeTimes.get(Phase.SORT));
+    times.addAll(rangeTimes);
+  }
+
+  /**
+   * Stage the rows per group and write them in chunks of up to
+   * {@link #stagingSize} bytes. Staging buffers are only allocated for the
+   * groups that get rows, and rows larger than them are written directly.
+   */
+  private void partitionRows(RowReader reader, PhaseTimes rangeTimes) throws Exception {
+    byte[][] buffers = new byte[workers][];
+    int[] filled = new int[workers];
+    while (reader.next()) {
+      int sortKey = reader.key();
+      int group = partitioner.getGroup(sortKey);
+      // System.out.println("Key " + sortKey + " sorted to group " + group);
+      int length = reader.length();
+      if (filled[group] > 0 && filled[group] + length > stagingSize) {
+        write(rangeTimes, group, buffers[group], 0, filled[group]);
+        filled[group] = 0;
+      }
+      if (length > stagingSize) {
+        write(rangeTimes, group, reader.buffer(), reader.offset(), length);
+      } else {
+        if (buffers[group] == null) {
+          buffers[group] = new byte[stagingSize];
         }
-      });
+        System.arraycopy(reader.buffer(), reader.offset(), buffers[group], filled[group], length);
+        filled[group] += length;
+      }
+    }
+    reader.close();
 
-      for (int i = 0; i < writers.length; i++) {
-        writers[i].close();
+    for (int i = 0; i < workers; i++) {
+      if (filled[i] > 0) {
+        write(rangeTimes, i, buffers[i], 0, filled[i]);
       }
-    } catch (Exception e) {
-      e.printStackTrace();
     }
+  }
+
+  private void write(PhaseTimes rangeTimes, int group, byte[] rows, int offset, int length) throws Exception {
+    long start = System.nanoTime();
+    synchronized (outputs[group]) {
+      outputs[group].write(rows, offset, length);
+    }
+    rangeTimes.add(Phase.SEND, System.nanoTime() - start);
+  }
+
+  /**
+   * Buffer the rows of each group and write them as sorted segment files
+   * (<code>&lt;group file&gt;-&lt;segment&gt;</code>), so the reducers only
+   * have to merge.
+   */
+  private void mapPresorted(RowReader reader, PhaseTimes rangeTimes) throws Exception {
+    long segmentSize = conf.getPresortBuffer();
+    SortBuffer[] buffers = new SortBuffer[workers];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = new SortBuffer(conf.rowWidth(), (int) Math.min(8 * 1024 * 1024, segmentSize));
+    }
+
+    while (reader.next()) {
+      int group = partitioner.getGroup(reader.key());
+      SortBuffer buffer = buffers[group];
+      buffer.add(reader.key(), reader.buffer(), reader.offset(), reader.length());
+      if (buffer.rowBytes() >= segmentSize) {
+        writeSegment(rangeTimes, group, buffer);
+      }
+    }
+    reader.close();
+
+    for (int i = 0; i < buffers.length; i++) {
+      if (!buffers[i].isEmpty()) {
+        writeSegment(rangeTimes, i, buffers[i]);
+      }
+      buffers[i].release();
+    }
+  }
 
+  private void writeSegment(PhaseTimes rangeTimes, int group, SortBuffer buffer) throws Exception {
+    long start = System.nanoTime();
+    String filename = String.format(groupsFilePattern, group) + "-" + segments[group].getAndIncrement();
+    CrailFile segmentFile = store.create(filename, CrailNodeType.DATAFILE,
+        CrailStorageClass.get(1), CrailLocationClass.DEFAULT, true).get().asFile();
+    CrailBufferedOutputStream cbos = segmentFile.getBufferedOutputStream(buffer.rowBytes());
+    long sortStart = System.nanoTime();
+    buffer.sort();
+    long sorted = System.nanoTime();
+    buffer.writeTo(cbos::write);
+    cbos.close();
+    buffer.clear();
+    rangeTimes.add(Phase.SORT, sorted - sortStart);
+    rangeTimes.add(Phase.SEND, System.nanoTime() - start - (sorted - sortStart));
   }
 
 }
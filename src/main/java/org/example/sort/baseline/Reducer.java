@@ -1,13 +1,8 @@
 package org.example.sort.baseline;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.util.Comparator;
-import java.util.AbstractMap.SimpleEntry;
-import java.util.stream.Stream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import org.apache.crail.CrailBufferedInputStream;
 import org.apache.crail.CrailBufferedOutputStream;
@@ -17,17 +12,32 @@ import org.apache.crail.CrailMultiFile;
 import org.apache.crail.CrailNodeType;
 import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
+import org.example.sort.Phase;
+import org.example.sort.PhaseTimes;
+import org.example.sort.RowMerger;
+import org.example.sort.RowReader;
+import org.example.sort.RowSource;
+import org.example.sort.SortBuffer;
+import org.example.sort.SortConf;
 
 public class Reducer implements Runnable {
+  // segments merged at once, each with a read buffer
+  private static final int MERGE_FAN_IN = 64;
+
+  private CrailStore store;
+  private String reducerMultifile;
   private CrailMultiFile multiFile;
   private CrailFile resultFile;
-  private int workers;
-  private int columnKey;
+  private int mappers;
+  private SortConf conf;
+  private final PhaseTimes times = new PhaseTimes();
 
-  public Reducer(CrailStore store, int columnKey,
-      String reducerMultifile, String resultFileName, int workers) throws Exception {
-    this.workers = workers;
-    this.columnKey = columnKey;
+  public Reducer(CrailStore store, SortConf conf,
+      String reducerMultifile, String resultFileName, int mappers) throws Exception {
+    this.store = store;
+    this.reducerMultifile = reducerMultifile;
+    this.mappers = mappers;
+    this.conf = conf;
 
     multiFile = store.lookup(reducerMultifile).get().asMultiFile();
     resultFile = store.create(resultFileName, CrailNodeType.DATAFILE, CrailStorageClass.get(1),
@@ -37,41 +47,138 @@ public class Reducer implements Runnable {
 
   @Override
   public void run() {
+    if (conf.isPresorted()) {
+      mergeSegments();
+      return;
+    }
     try {
-      CrailBufferedInputStream multiStream = multiFile.getMultiStream(workers);
+      CrailBufferedInputStream multiStream = multiFile.getMultiStream(mappers);
       CrailBufferedOutputStream cbos = resultFile.getBufferedOutputStream(multiFile.getCapacity());
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(cbos));
 
-      Stream<String> lines = new BufferedReader(new InputStreamReader(multiStream)).lines();
-      lines
-          .map(line -> new SimpleEntry<>(Integer.parseInt(line.split(",", columnKey + 2)[columnKey]), line))
-          .sorted(Comparator.comparingInt(SimpleEntry::getKey))
-          .forEachOrdered(entry -> {
-            try {
-              writer.write(entry.getValue());
-              writer.newLine();
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          });
-      // Equivalent to:
-      // List<SimpleEntry<Integer, String>> allLines = lines
-      //     .map(line -> new SimpleEntry<>(Integer.parseInt(line.split(",", columnKey + 2)[columnKey]), line))
-      //     .collect(Collectors.toList());
-      // allLines.sort(Comparator.comparingInt(SimpleEntry::getKey));
-      // allLines.forEach(entry -> {
-      //   try {
-      //     writer.write(entry.getValue());
-      //     writer.newLine();
-      //   } catch (IOException e) {
-      //     e.printStackTrace();
-      //   }
-      // });
-      
-      writer.close();
+      long start = System.nanoTime();
+      RowReader reader = new RowReader(multiStream, conf);
+      // a sort buffer holds up to 4 GiB, larger groups are sorted in several runs and merged
+      List<SortBuffer> runs = new ArrayList<>();
+      SortBuffer rows = new SortBuffer(conf.rowWidth());
+      runs.add(rows);
+      while (reader.next()) {
+        if (!rows.hasRoom(reader.length())) {
+          rows = new SortBuffer(conf.rowWidth());
+          runs.add(rows);
+        }
+        rows.add(reader.key(), reader.buffer(), reader.offset(), reader.length());
+      }
+      reader.close();
+      long parsed = System.nanoTime();
+      for (SortBuffer run : runs) {
+        run.sort();
+      }
+      long sorted = System.nanoTime();
+      if (runs.size() == 1) {
+        rows.writeTo(cbos::write);
+      } else {
+        List<RowSource> cursors = new ArrayList<>(runs.size());
+        for (SortBuffer run : runs) {
+          cursors.add(run.cursor());
+        }
+        new RowMerger(cursors).mergeTo(cbos::write);
+      }
+      runs.forEach(SortBuffer::release);
+
+      cbos.close();
+      times.add(Phase.RECEIVE, reader.getReadNanos());
+      times.add(Phase.PARSE, parsed - start - reader.getReadNanos());
+      times.add(Phase.SORT, sorted - parsed);
+      times.add(Phase.WRITE, System.nanoTime() - sorted);
+
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * @return Time spent in each phase. Complete once the reducer has run.
+   */
+  public PhaseTimes getTimes() {
+    return times;
+  }
 
+  /**
+   * Merge the sorted segments written by the mappers into the result file.
+   * Segments of mapper <code>i</code> are named <code>part_i-0</code>,
+   * <code>part_i-1</code>, ... and are listed from the group's multifile, so
+   * a missing number does not hide the segments after it. At most
+   * {@link #MERGE_FAN_IN} segments are open at once: with more, they are
+   * merged in several passes through temporary files.
+   */
+  private void mergeSegments() {
+    try {
+      long start = System.nanoTime();
+      List<String> segments = new ArrayList<>();
+      Iterator<String> entries = multiFile.listEntries();
+      while (entries.hasNext()) {
+        String entry = entries.next();
+        String name = entry.substring(entry.lastIndexOf('/') + 1);
+        if (name.startsWith("part_")) {
+          segments.add(reducerMultifile + "/" + name);
+        }
+      }
+      long received = 0;
+      // merged files of the previous pass, deleted once merged again
+      List<String> temporary = new ArrayList<>();
+      for (int pass = 0; segments.size() > MERGE_FAN_IN; pass++) {
+        List<String> merged = new ArrayList<>();
+        for (int from = 0; from < segments.size(); from += MERGE_FAN_IN) {
+          String name = reducerMultifile + "/merge_" + pass + "-" + merged.size();
+          CrailFile mergedFile = store.create(name, CrailNodeType.DATAFILE, CrailStorageClass.get(1),
+              CrailLocationClass.DEFAULT, false).get().asFile();
+          received += merge(segments.subList(from, Math.min(from + MERGE_FAN_IN, segments.size())), mergedFile);
+          merged.add(name);
+        }
+        deleteFiles(temporary);
+        temporary = merged;
+        segments = merged;
+      }
+      received += merge(segments, resultFile);
+      deleteFiles(temporary);
+      times.add(Phase.RECEIVE, received);
+      times.add(Phase.WRITE, System.nanoTime() - start - received);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
+
+  /**
+   * Merge the sorted files at <code>paths</code> into <code>target</code>.
+   *
+   * @return Time spent reading the files.
+   */
+  private long merge(List<String> paths, CrailFile target) throws Exception {
+    List<RowReader> readers = new ArrayList<>(paths.size());
+    long bytes = 0;
+    for (String path : paths) {
+      CrailFile file = store.lookup(path).get().asFile();
+      bytes += file.getCapacity();
+      readers.add(new RowReader(file.getBufferedInputStream(file.getCapacity()), conf));
+    }
+    CrailBufferedOutputStream cbos = target.getBufferedOutputStream(bytes);
+    // closes the readers
+    new RowMerger(readers).mergeTo(cbos::write);
+    cbos.close();
+    long received = 0;
+    for (RowReader reader : readers) {
+      received += reader.getReadNanos();
+    }
+    return received;
+  }
+
+  private void deleteFiles(List<String> paths) {
+    for (String path : paths) {
+      try {
+        store.delete(path, false).get();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+  }
 }
@@ -0,0 +1,55 @@
+package org.example.wordcount;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Substring search in raw bytes with the Boyer-Moore-Horspool algorithm.
+ * <p>
+ * The skip table gives, for each byte value, how far the pattern can move
+ * when that byte is under its last position, so most of the text is never
+ * compared: about <code>length / pattern length</code> bytes are looked at
+ * when the pattern is rare.
+ */
+public class BytePattern {
+  private final byte[] pattern;
+  private final int[] skip = new int[256];
+
+  public BytePattern(String pattern) {
+    this(pattern.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public BytePattern(byte[] pattern) {
+    if (pattern.length == 0) {
+      throw new IllegalArgumentException("Empty pattern");
+    }
+    this.pattern = pattern.clone();
+    int last = pattern.length - 1;
+    Arrays.fill(skip, pattern.length);
+    for (int i = 0; i < last; i++) {
+      skip[pattern[i] & 0xff] = last - i;
+    }
+  }
+
+  public int length() {
+    return pattern.length;
+  }
+
+  /**
+   * @return The first index in <code>buffer[from, to)</code> where the
+   *         pattern starts, or -1.
+   */
+  public int indexOf(byte[] buffer, int from, int to) {
+    int last = pattern.length - 1;
+    for (int i = from; i + last < to; i += skip[buffer[i + last] & 0xff]) {
+      int j = last;
+      while (buffer[i + j] == pattern[j]) {
+        if (j == 0) {
+          return i;
+        }
+        j--;
+      }
+    }
+    return -1;
+  }
+}
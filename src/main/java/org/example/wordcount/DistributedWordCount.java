@@ -1,23 +1,17 @@
 package org.example.wordcount;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
@@ -25,9 +19,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.crail.CrailLocationClass;
 import org.apache.crail.CrailNode;
@@ -37,6 +31,7 @@ import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
 import org.apache.crail.conf.CrailConfiguration;
 import org.apache.crail.core.ActiveWritableChannel;
+import org.example.CrailProperties;
 
 /**
  * Distributed WorCount computation in three steps:
@@ -51,18 +46,45 @@ import org.apache.crail.core.ActiveWritableChannel;
  * 2 implementations:
  * {@link DistributedWordCount#workersReduceLocal()} and
  * {@link DistributedWordCount#workersReduceCrail()}.
+ * <p>
+ * The first argument picks the {@link WordCountCodec.Format} of the maps sent
+ * to and read from the merger (<code>java</code>, <code>varint</code> or
+ * <code>front_coded</code>, default <code>varint</code>). The bytes sent and
+ * the time spent in each direction are printed, to compare the formats.
+ * <p>
+ * The second argument is the fan-in of a tree of mergers (see
+ * {@link #createMergers()}). By default, or below 2, all workers send to a
+ * single merger.
+ * <p>
+ * A third argument above 0 puts the mergers in sketch mode: they keep that
+ * many approximate counters instead of every word, and the root returns only
+ * the top 10 words with error bounds (see {@link SpaceSavingSketch}).
  */
 public class DistributedWordCount {
   public static final String LOCAL_FILE = "/Datasets/wiki1/AA/wiki_%02d";
   public static final String MERGER_PATH = "/words";
   public static final int N_WORKERS = 5;
+  public static final String FILTER_PATTERN = "gold";
+  public static final int WORKER_TIMEOUT_MINUTES = 10;
 
   private final CrailStore store;
+  private final WordCountCodec.Format format;
+  private final int fanIn;
+  private final int sketchWords;
+  // Maps sent to the merger, over all workers
+  private final AtomicLong sentBytes = new AtomicLong();
+  private final AtomicLong sendNanos = new AtomicLong();
+  // Workers whose words are missing from the result
+  private final AtomicInteger failedWorkers = new AtomicInteger();
   // Workers
   private final ExecutorService es;
   private final ConcurrentLinkedQueue<Path> tasks = new ConcurrentLinkedQueue<>();
 
-  public DistributedWordCount() throws Exception {
+  public DistributedWordCount(WordCountCodec.Format format, int fanIn, int sketchWords) throws Exception {
+    this.format = format;
+    this.sketchWords = sketchWords;
+    // a fan-in of all workers is a single merger
+    this.fanIn = fanIn < 2 ? N_WORKERS : fanIn;
     CrailConfiguration conf = CrailConfiguration.createConfigurationFromFile();
     store = CrailStore.newInstance(conf);
     es = Executors.newFixedThreadPool(N_WORKERS);
@@ -70,7 +92,19 @@ public class DistributedWordCount {
 
   public static void main(String[] args) {
     try {
-      DistributedWordCount dwc = new DistributedWordCount();
+      WordCountCodec.Format format = WordCountCodec.Format.VARINT;
+      if (args.length > 0) {
+        format = WordCountCodec.Format.valueOf(args[0].toUpperCase());
+      }
+      int fanIn = 0;
+      if (args.length > 1) {
+        fanIn = Integer.parseInt(args[1]);
+      }
+      int sketchWords = 0;
+      if (args.length > 2) {
+        sketchWords = Integer.parseInt(args[2]);
+      }
+      DistributedWordCount dwc = new DistributedWordCount(format, fanIn, sketchWords);
       dwc.runMain();
     } catch (Exception e) {
       e.printStackTrace();
@@ -78,16 +112,16 @@ public class DistributedWordCount {
   }
 
   /**
-   * Count the words in a stream of text lines.
+   * Count the words in a text stream, scanning its bytes with a
+   * {@link WordTokenizer}. Closes the stream.
    *
-   * @param lines Stream of text lines to process
-   * @return A Map with the counts of each word that appeared in the stream
+   * @param in Text stream to process
+   * @return The counts of each word that appeared in the stream
    */
-  private static Map<String, Long> countWords(Stream<String> lines) {
-    return lines
-        .flatMap(line -> Stream.of(line.toLowerCase().split("\\W+"))
-                               .filter(w -> !w.isEmpty()))
-        .collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+  private static WordCountMap countWords(InputStream in) throws IOException {
+    WordCountMap words = new WordCountMap();
+    new WordTokenizer(in).forEachWord(words::increment);
+    return words;
   }
 
   /**
@@ -104,6 +138,8 @@ public class DistributedWordCount {
     CrailNode crailNode = store.lookup(actionPath).get();
     CrailObjectProxy filterAction;
     if (crailNode == null) {
+      // the filter action reads its pattern on creation
+      CrailProperties.store(store, actionPath + FilterAction.CONF_SUFFIX, FilterAction.conf(FILTER_PATTERN));
       crailNode = store.create(actionPath, CrailNodeType.OBJECT, CrailStorageClass.DEFAULT,
                                CrailLocationClass.DEFAULT, false).get();
       filterAction = crailNode.asObject().getProxy();
@@ -132,30 +168,29 @@ public class DistributedWordCount {
    *
    * @return The final aggregated Map with the word counts of all data.
    */
-  private Map<String, Long> workersReduceLocal() {
-    Callable<Map<String, Long>> workerCode = () -> {
+  private WordCountMap workersReduceLocal() {
+    Callable<WordCountMap> workerCode = () -> {
       Path localFile = tasks.poll();
       if (localFile != null) {
         String actionPath = "/" + localFile.getFileName().toString();
         try {
           CrailObjectProxy filterAction = createOrGetFilterAction(actionPath, localFile);
           InputStream is = filterAction.getInputStream();
-          Stream<String> lines = new BufferedReader(new InputStreamReader(is)).lines();
-          return countWords(lines);
+          return countWords(is);
         } catch (Exception e) {
           System.out.println("Error accessing crail.");
           e.printStackTrace();
         }
       }
-      return new HashMap<>();
+      return new WordCountMap();
     };
 
-    List<Future<Map<String, Long>>> futures = new ArrayList<>(N_WORKERS);
+    List<Future<WordCountMap>> futures = new ArrayList<>(N_WORKERS);
     for (int i = 0; i < N_WORKERS; i++) {
       futures.add(es.submit(workerCode));
     }
-    List<Map<String, Long>> wordMaps = new ArrayList<>(N_WORKERS);
-    for (Future<Map<String, Long>> future : futures) {
+    List<WordCountMap> wordMaps = new ArrayList<>(N_WORKERS);
+    for (Future<WordCountMap> future : futures) {
       try {
         wordMaps.add(future.get());
       } catch (InterruptedException | ExecutionException e) {
@@ -163,80 +198,183 @@ public class DistributedWordCount {
       }
     }
     // Reduce word counts
-    return wordMaps.stream()
-                   .flatMap(m -> m.entrySet().stream())
-                   .collect(Collectors.groupingBy(Map.Entry::getKey, Collectors.summingLong(Map.Entry::getValue)));
+    WordCountMap words = new WordCountMap();
+    wordMaps.forEach(words::merge);
+    return words;
+  }
+
+  /**
+   * @return Path of merger <code>index</code> of tree level <code>level</code>,
+   * {@link #MERGER_PATH} for the root.
+   */
+  private static String mergerPath(List<Integer> levels, int level, int index) {
+    return level == levels.size() - 1 ? MERGER_PATH : MERGER_PATH + "_" + level + "_" + index;
+  }
+
+  /**
+   * @return Number of mergers on each level of the tree, leaves first: each
+   * merger takes <code>fanIn</code> workers or mergers of the level below,
+   * up to a single root.
+   */
+  private List<Integer> treeLevels() {
+    List<Integer> levels = new ArrayList<>();
+    int width = N_WORKERS;
+    do {
+      width = (width + fanIn - 1) / fanIn;
+      levels.add(width);
+    } while (width > 1);
+    return levels;
+  }
+
+  /**
+   * Create the MapMerger actions of the fan-in tree, each configured with its
+   * parent and number of children. Worker <code>i</code> writes to leaf
+   * <code>i / fanIn</code> and the client reads the root. Each merger
+   * forwards to its parent after its last child, so the merge ends after
+   * one round per level instead of one merge per worker on a single action.
+   *
+   * @return Paths of the mergers, leaves first, root last.
+   */
+  private List<String> createMergers() throws Exception {
+    List<Integer> levels = treeLevels();
+    List<String> paths = new ArrayList<>();
+    for (int level = 0; level < levels.size(); level++) {
+      int below = level == 0 ? N_WORKERS : levels.get(level - 1);
+      for (int i = 0; i < levels.get(level); i++) {
+        String path = mergerPath(levels, level, i);
+        String parent = level == levels.size() - 1 ? null : mergerPath(levels, level + 1, i / fanIn);
+        int children = Math.min(below, (i + 1) * fanIn) - i * fanIn;
+        Properties mergerConf = MapMerger.conf(parent, children, format, MapMerger.STRIPES,
+                                               sketchWords, MapMerger.TOP);
+        CrailProperties.store(store, path + MapMerger.CONF_SUFFIX, mergerConf);
+        CrailNode crailNode = store.create(path, CrailNodeType.OBJECT, CrailStorageClass.DEFAULT,
+                                           CrailLocationClass.DEFAULT, false).get();
+        // with interleaving, so children merge concurrently
+        crailNode.syncDir().asObject().getProxy().create(MapMerger.class, true);
+        paths.add(path);
+      }
+    }
+    System.out.println("Merger tree: " + levels + " mergers per level, fan-in " + fanIn);
+    return paths;
   }
 
   /**
    * Run the computation on parallel workers (reading from FilterAction crail
-   * objects) and the workers send their results to a MapMerger crail object.
-   * The merger aggregates maps as the workers send them.
+   * objects) and the workers send their results to MapMerger crail objects.
+   * The mergers aggregate maps as the workers send them, through a fan-in
+   * tree if configured.
    *
    * @return The final aggregated Map with the word counts of all data,
-   * retrieved from the MapMerger object.
+   * retrieved from the root MapMerger object. In sketch mode, only the top
+   * words with their estimated counts. A worker that fails still sends an
+   * empty map, so its leaf forwards once all its children wrote, and the
+   * failures are reported with the result.
    */
-  private Map<String, Long> workersReduceCrail() {
+  private WordCountMap workersReduceCrail() {
+    AtomicInteger nextWorker = new AtomicInteger();
     Runnable workerCode = () -> {
+      int worker = nextWorker.getAndIncrement();
       Path localFile = tasks.poll();
+      WordCountMap words = new WordCountMap();
+      boolean failed = false;
       if (localFile != null) {
         String actionPath = "/" + localFile.getFileName().toString();
         try {
           CrailObjectProxy filterAction = createOrGetFilterAction(actionPath, localFile);
           InputStream is = filterAction.getInputStream();
-          Stream<String> lines = new BufferedReader(new InputStreamReader(new BufferedInputStream(is, 512 * 1024))).lines();
-          Map<String, Long> words = countWords(lines);
-
-          CrailObjectProxy mapMerger = store.lookup(MERGER_PATH).get().asObject().getProxy();
-          OutputStream os = mapMerger.getOutputStream();
-          ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os, 64 * 1024));
-          oos.writeObject(words);
-          oos.close();
-          // write is synchronous: the merge is finished when the worker ends
+          words = countWords(is);
         } catch (Exception e) {
           System.out.println("Error accessing crail.");
           e.printStackTrace();
+          failed = true;
+          words = new WordCountMap();
         }
       }
+
+      // also without words: the leaf waits for a write from each of its children
+      try {
+        String leaf = mergerPath(treeLevels(), 0, worker / fanIn);
+        CrailObjectProxy mapMerger = store.lookup(leaf).get().asObject().getProxy();
+        long start = System.nanoTime();
+        CountingOutputStream os = new CountingOutputStream(mapMerger.getOutputStream());
+        WordCountCodec.write(words, os, format);
+        os.close();
+        // write is synchronous: the merge (and forwarding up the tree after
+        // the last child) is finished when the worker ends
+        sendNanos.addAndGet(System.nanoTime() - start);
+        sentBytes.addAndGet(os.getCount());
+      } catch (Exception e) {
+        System.out.println("Error sending to merger.");
+        e.printStackTrace();
+        failed = true;
+      }
+      if (failed) {
+        failedWorkers.incrementAndGet();
+      }
     };
 
     try {
-      // Create merger action
-      CrailNode crailNode = store.create(MERGER_PATH, CrailNodeType.OBJECT, CrailStorageClass.DEFAULT,
-                                         CrailLocationClass.DEFAULT, false).get();
-      CrailObjectProxy merger = crailNode.syncDir().asObject().getProxy();
-      merger.create(MapMerger.class);
+      // Create merger actions
+      List<String> mergers = createMergers();
+      CrailObjectProxy merger = store.lookup(MERGER_PATH).get().asObject().getProxy();
 
       List<Future<?>> futures = new ArrayList<>(N_WORKERS);
       for (int i = 0; i < N_WORKERS; i++) {
         futures.add(es.submit(workerCode));
       }
+      long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(WORKER_TIMEOUT_MINUTES);
       for (Future<?> future : futures) {
         try {
-          future.get();
+          future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          future.cancel(true);
+          failedWorkers.incrementAndGet();
+          System.err.println("Worker did not finish in " + WORKER_TIMEOUT_MINUTES + " minutes.");
         } catch (InterruptedException | ExecutionException e) {
           e.printStackTrace();
         }
       }
       // Get reduced map from crail
-      InputStream is = merger.getInputStream();
-      ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(is, 64 * 1024));
-      @SuppressWarnings("unchecked")
-      Map<String, Long> words = (Map<String, Long>) ois.readObject();
-      ois.close();
-      merger.delete();
-      try {
-        store.delete(MERGER_PATH, false).get();
-        // BROKEN clientside: removes from datanode but client seeks negative position
-      } catch (Exception e) {
-        System.out.println(e);
-//        e.printStackTrace();
+      long start = System.nanoTime();
+      CountingInputStream is = new CountingInputStream(merger.getInputStream());
+      WordCountMap words;
+      if (sketchWords > 0) {
+        List<SpaceSavingSketch.HeavyHitter> top = SpaceSavingSketch.readTop(is);
+        System.out.println("Top words with bounds: " + top);
+        words = new WordCountMap(top.size());
+        for (SpaceSavingSketch.HeavyHitter hitter : top) {
+          byte[] word = hitter.getWord().getBytes(StandardCharsets.UTF_8);
+          words.add(word, 0, word.length, hitter.getCount());
+        }
+      } else {
+        words = WordCountCodec.read(is);
+      }
+      is.close();
+      long fetchNanos = System.nanoTime() - start;
+      System.out.println("Format " + format + ": sent " + sentBytes.get() + " bytes, encode and merge "
+                         + sendNanos.get() / 1000000 + " ms over all workers; merged map "
+                         + is.getCount() + " bytes, fetched in " + fetchNanos / 1000000 + " ms");
+      if (failedWorkers.get() > 0) {
+        // their subtree may not have reached the root either
+        System.err.println("Error: " + failedWorkers.get() + " of " + N_WORKERS
+                           + " workers failed, the counts are incomplete.");
+      }
+      for (String path : mergers) {
+        store.lookup(path).get().asObject().getProxy().delete();
+        try {
+          store.delete(path, false).get();
+          // BROKEN clientside: removes from datanode but client seeks negative position
+        } catch (Exception e) {
+          System.out.println(e);
+//          e.printStackTrace();
+        }
+        store.delete(path + MapMerger.CONF_SUFFIX, false).get();
       }
       return words;
     } catch (Exception e) {
       e.printStackTrace();
     }
-    return new HashMap<>();
+    return new WordCountMap();
   }
 
   private void runMain() {
@@ -245,16 +383,12 @@ public class DistributedWordCount {
     }
 
     long time1 = System.currentTimeMillis();
-//    Map<String, Long> words = workersReduceLocal();
-    Map<String, Long> words = workersReduceCrail();
+//    WordCountMap words = workersReduceLocal();
+    WordCountMap words = workersReduceCrail();
     long time2 = System.currentTimeMillis();
 
     // Show top 10
-    List<Map.Entry<String, Long>> top10 =
-        words.entrySet().stream()
-             .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-             .limit(10)
-             .collect(Collectors.toList());
+    List<Map.Entry<String, Long>> top10 = words.topK(10);
     System.out.println(top10);
 
     System.out.println("Elapsed: " + (time2 - time1) + " ms");
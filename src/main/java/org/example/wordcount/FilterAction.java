@@ -1,16 +1,12 @@
 package org.example.wordcount;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.stream.Stream;
+import java.util.Arrays;
+import java.util.Properties;
 
 import org.apache.crail.CrailAction;
 import org.apache.crail.CrailBufferedInputStream;
@@ -19,19 +15,53 @@ import org.apache.crail.CrailFile;
 import org.apache.crail.CrailLocationClass;
 import org.apache.crail.CrailNodeType;
 import org.apache.crail.CrailStorageClass;
+import org.example.CrailProperties;
 
 /**
  * Action that saves data written to it into another (traditional) Crail File.
- * The received data is however first filtered (string-based).
+ * The received data is however first filtered: only the lines containing a
+ * pattern are kept.
+ * <p>
+ * The pattern is read on creation from the properties saved at the action's
+ * path + {@link #CONF_SUFFIX} (see {@link #conf}), {@link #DEFAULT_PATTERN}
+ * if there are none. The received bytes are searched for the pattern with a
+ * {@link BytePattern}, without decoding them, and each matching line is
+ * copied as is.
  */
 public class FilterAction extends CrailAction {
+  public static final String CONF_SUFFIX = ".conf";
+  public static final String DEFAULT_PATTERN = "gold";
   private static final String FILE_SUFFIX = "-data";
+  private static final int BUFFER = 512 * 1024;
   private CrailFile myData;
+  private BytePattern pattern;
+
+  /**
+   * @param pattern Text that the kept lines contain, without line breaks.
+   * @return The configuration of a filter action, to save at its path +
+   *         {@link #CONF_SUFFIX} before creating it.
+   */
+  public static Properties conf(String pattern) {
+    Properties props = new Properties();
+    props.setProperty("pattern", pattern);
+    return props;
+  }
 
   @Override
   public void onCreate() {
     System.out.println("Filter action on create: " + this.self.getPath());
 
+    String text = DEFAULT_PATTERN;
+    try {
+      Properties props = CrailProperties.load(this.fs, this.self.getPath() + CONF_SUFFIX);
+      if (props != null) {
+        text = props.getProperty("pattern", text);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    pattern = new BytePattern(text);
+
     try {
       // Create the delegated crail file
       myData = this.fs.create(this.self.getPath() + FILE_SUFFIX, CrailNodeType.DATAFILE,
@@ -69,28 +99,65 @@ public class FilterAction extends CrailAction {
     // Process received data: filter lines, store to crail file only filtered data
     System.out.println("Filter action on write stream: " + this.self.getPath());
 
-    InputStream stream = Channels.newInputStream(channel);
-    Stream<String> lines = new BufferedReader(new InputStreamReader(stream)).lines();
-    Stream<String> linesWithGold = lines.filter(l -> l.contains("gold"));
-
     try {
       CrailBufferedOutputStream outputStream = myData.getBufferedOutputStream(0);
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-      linesWithGold.forEachOrdered(l -> {
-        try {
-          writer.write(l);
-          writer.newLine();
-        } catch (IOException e) {
-          e.printStackTrace();
+      byte[] buffer = new byte[BUFFER];
+      int filled = 0;
+      int read;
+      while ((read = channel.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled))) >= 0) {
+        // the bytes kept from earlier reads hold no line break, only scan the new ones
+        int scanned = filled;
+        filled += read;
+        // filter complete lines only, the last one may continue in the next read
+        int end = filled;
+        while (end > scanned && buffer[end - 1] != '\n') {
+          end--;
         }
-      });
-      writer.close();
+        if (end == scanned) {
+          if (filled == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+          }
+          continue;
+        }
+        filterLines(buffer, end, outputStream);
+        System.arraycopy(buffer, end, buffer, 0, filled - end);
+        filled -= end;
+      }
+      filterLines(buffer, filled, outputStream);
+      outputStream.close();
     } catch (Exception e) {
       System.out.println("Error writing to crail data file for action " + self.getPath());
       e.printStackTrace();
     }
   }
 
+  /**
+   * Copy the lines of <code>buffer[0, end)</code> that contain the pattern to
+   * <code>out</code>, with their line break. A last line without one gets a
+   * <code>'\n'</code>.
+   */
+  private void filterLines(byte[] buffer, int end, OutputStream out) throws IOException {
+    int pos = 0;
+    int match;
+    while (pos < end && (match = pattern.indexOf(buffer, pos, end)) >= 0) {
+      int start = match;
+      while (start > pos && buffer[start - 1] != '\n') {
+        start--;
+      }
+      int lineEnd = match + pattern.length();
+      while (lineEnd < end && buffer[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      if (lineEnd < end) {
+        out.write(buffer, start, lineEnd + 1 - start);
+      } else {
+        out.write(buffer, start, lineEnd - start);
+        out.write('\n');
+      }
+      pos = lineEnd + 1;
+    }
+  }
+
   @Override
   public void onDelete() {
     super.onDelete();
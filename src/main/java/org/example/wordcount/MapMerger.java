@@ -1,27 +1,106 @@
 package org.example.wordcount;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.StreamCorruptedException;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.crail.CrailAction;
+import org.example.CrailProperties;
 
 /**
- * Crail Action to merge <code>Map<String, Long></code> by summing values.
+ * Crail Action to merge {@link WordCountMap}s by summing counts.
+ * <p>
+ * Maps are accepted in any {@link WordCountCodec.Format}, binary ones are
+ * merged as they are decoded. The merged map is read back in the format of
+ * the last map written.
+ * <p>
+ * Several workers may write at the same time, the merger is created with
+ * interleaving: each write stream merges into a {@link StripedWordCountMap}
+ * through its own writer.
+ * <p>
+ * Mergers can form a fan-in tree. A merger is configured by the properties
+ * saved at its path + {@link #CONF_SUFFIX} before it is created (see
+ * {@link #conf}). A merger with a parent forwards its merged map to the
+ * parent once its expected number of children have written, so the root
+ * holds all counts when the last worker's write returns.
+ * <p>
+ * In sketch mode the merger keeps only a {@link SpaceSavingSketch} of the
+ * most frequent words, in constant memory. Reading it returns the top words
+ * with their error bounds (see {@link SpaceSavingSketch#readTop}), and it
+ * forwards its whole sketch to its parent, which must be in sketch mode too.
  */
 public class MapMerger extends CrailAction {
-  private Map<String, Long> aggMap;
+  public static final String CONF_SUFFIX = ".conf";
+  public static final int STRIPES = 64;
+  public static final int TOP = 10;
+
+  private StripedWordCountMap aggMap;
+  // sketch mode, instead of aggMap
+  private SpaceSavingSketch sketch;
+  private int sketchWords;
+  private int top;
+  private volatile WordCountCodec.Format format;
+  // Fan-in tree, no parent for the root or a standalone merger
+  private String parent;
+  private int children;
+  private WordCountCodec.Format forwardFormat;
+  private final AtomicInteger written = new AtomicInteger();
+
+  /**
+   * @param parent        Path of the merger to forward to, or
+   *                      <code>null</code> for the root.
+   * @param children      Number of writes to wait for before forwarding.
+   * @param forwardFormat Format of the map sent to the parent.
+   * @param stripes       Stripes of the merged map, about the number of
+   *                      concurrent writers times a few.
+   * @param sketchWords   Words monitored in sketch mode, 0 for exact counts.
+   * @param top           Words returned by a read in sketch mode.
+   * @return The configuration of a merger, to save at its path +
+   *         {@link #CONF_SUFFIX}.
+   */
+  public static Properties conf(String parent, int children, WordCountCodec.Format forwardFormat, int stripes,
+                                int sketchWords, int top) {
+    Properties props = new Properties();
+    if (parent != null) {
+      props.setProperty("parent", parent);
+    }
+    props.setProperty("children", Integer.toString(children));
+    props.setProperty("format", forwardFormat.name());
+    props.setProperty("stripes", Integer.toString(stripes));
+    props.setProperty("sketch", Integer.toString(sketchWords));
+    props.setProperty("top", Integer.toString(top));
+    return props;
+  }
 
   @Override
   public void onCreate() {
-    aggMap = new HashMap<>();
+    int stripes = STRIPES;
+    top = TOP;
+    forwardFormat = WordCountCodec.Format.VARINT;
+    try {
+      Properties props = CrailProperties.load(this.fs, this.self.getPath() + CONF_SUFFIX);
+      if (props != null) {
+        parent = props.getProperty("parent");
+        children = Integer.parseInt(props.getProperty("children", "0"));
+        forwardFormat = WordCountCodec.Format.valueOf(props.getProperty("format", forwardFormat.name()));
+        stripes = Integer.parseInt(props.getProperty("stripes", Integer.toString(stripes)));
+        sketchWords = Integer.parseInt(props.getProperty("sketch", "0"));
+        top = Integer.parseInt(props.getProperty("top", Integer.toString(top)));
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    if (sketchWords > 0) {
+      sketch = new SpaceSavingSketch(sketchWords);
+    } else {
+      aggMap = new StripedWordCountMap(stripes);
+    }
+    format = WordCountCodec.Format.VARINT;
   }
 
   @Override
@@ -29,10 +108,17 @@ public class MapMerger extends CrailAction {
     // this action's serialized aggMap is written to channel
     System.out.println("Reading merged map...");
     try {
-      OutputStream stream = Channels.newOutputStream(channel);
-      ObjectOutputStream oos = new ObjectOutputStream(stream);
-      oos.writeObject(aggMap);
-      oos.close();
+      CountingOutputStream stream = new CountingOutputStream(Channels.newOutputStream(channel));
+      long start = System.nanoTime();
+      if (sketch != null) {
+        sketch.writeTop(top, stream);
+      } else {
+        WordCountCodec.write(aggMap.snapshot(), stream, format);
+      }
+      stream.close();
+      String kind = sketch != null ? "top " + top : format.toString();
+      System.out.println("Sent merged map (" + kind + "): " + stream.getCount() + " bytes in "
+                         + (System.nanoTime() - start) / 1000000 + " ms");
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -40,23 +126,61 @@ public class MapMerger extends CrailAction {
 
   @Override
   public void onWrite(ReadableByteChannel channel) {
-    // channel contains a Map<String, Long> that should be merged into this action's aggMap
+    // channel contains a WordCountMap that should be merged into this action's aggMap
     System.out.println("Merging into map...");
     try {
-      InputStream stream = Channels.newInputStream(channel);
-      ObjectInputStream ois = new ObjectInputStream(stream);
-      @SuppressWarnings("unchecked")
-      Map<String, Long> newMap = (Map<String, Long>) ois.readObject();
-      ois.close();
-      newMap.forEach((key, value) -> aggMap.merge(key, value, Long::sum));
-    } catch (IOException e) {
-      e.printStackTrace();
-    } catch (ClassNotFoundException | ClassCastException e) {
+      CountingInputStream stream = new CountingInputStream(Channels.newInputStream(channel));
+      long start = System.nanoTime();
+      if (sketch != null) {
+        sketch.mergeFrom(stream);
+      } else {
+        StripedWordCountMap.Writer writer = aggMap.newWriter();
+        format = WordCountCodec.mergeFrom(stream, writer);
+        writer.flush();
+      }
+      stream.close();
+      String kind = sketch != null ? "sketch" : format.toString();
+      System.out.println("Merged map (" + kind + "): " + stream.getCount() + " bytes in "
+                         + (System.nanoTime() - start) / 1000000 + " ms");
+    } catch (StreamCorruptedException e) {
       System.out.println("MapMerger action: Object sent is not a map.");
       e.printStackTrace();
+    } catch (IOException e) {
+      e.printStackTrace();
     } finally {
       System.out.println("Finished merge");
     }
+    // Writes run concurrently with interleaving. Each one counts itself only
+    // once its words are flushed into the map, so the write that brings the
+    // count to children sees every child merged and forwards exactly once.
+    // A failed child still counts, the parent gets what was merged.
+    if (parent != null && written.incrementAndGet() == children) {
+      forward();
+    }
+  }
+
+  /**
+   * Send the merged map to the parent merger. The write returns once the
+   * parent has merged it (and forwarded further up if this was its last
+   * child).
+   */
+  private void forward() {
+    try {
+      long start = System.nanoTime();
+      OutputStream os = this.fs.lookup(parent).get().asObject().getProxy().getOutputStream();
+      CountingOutputStream stream = new CountingOutputStream(os);
+      if (sketch != null) {
+        sketch.writeTop(sketchWords, stream);
+      } else {
+        WordCountCodec.write(aggMap.snapshot(), stream, forwardFormat);
+      }
+      stream.close();
+      String kind = sketch != null ? "sketch" : forwardFormat.toString();
+      System.out.println("Forwarded merged map (" + kind + ") to " + parent + ": "
+                         + stream.getCount() + " bytes in " + (System.nanoTime() - start) / 1000000 + " ms");
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
   }
 
   @Override
@@ -1,21 +1,23 @@
 package org.example.wordcount;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.Comparator;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.crail.CrailBufferedInputStream;
 import org.apache.crail.CrailBufferedOutputStream;
@@ -28,12 +30,14 @@ import org.apache.crail.CrailStorageClass;
 import org.apache.crail.CrailStore;
 import org.apache.crail.conf.CrailConfiguration;
 import org.apache.crail.core.ActiveWritableChannel;
+import org.example.CrailProperties;
 
 /**
  * Local WordCount computation that first filters the lines. It operates on a
  * file stored (or first loaded) in Crail as a simple CrailFile.
- * This implementation works on a single file and the computation is
- * single-threaded.
+ * This implementation works on a single file. The stream is read by one
+ * thread and its words are counted by {@link #THREADS} threads, see
+ * {@link #countWordsLocal(InputStream, int)}.
  * <p>
  * Contains 3 implementations:
  * {@link SingleWordCount#runLocal()},
@@ -43,6 +47,9 @@ import org.apache.crail.core.ActiveWritableChannel;
 public class SingleWordCount {
   public static final String FILENAME = "/Datasets/wiki100/AA/wiki_00";
   public static final String crailPath = "/wiki_00";
+  public static final String FILTER_PATTERN = "gold";
+  public static final int THREADS = Runtime.getRuntime().availableProcessors();
+  private static final int CHUNK_SIZE = 4 * 1024 * 1024;
 
   private static CrailConfiguration conf;
   private static CrailStore store;
@@ -78,6 +85,8 @@ public class SingleWordCount {
     CrailNode crailNode = store.lookup(crailPath).get();
     CrailObjectProxy filterAction;
     if (crailNode == null) {
+      // the filter action reads its pattern on creation
+      CrailProperties.store(store, crailPath + FilterAction.CONF_SUFFIX, FilterAction.conf(FILTER_PATTERN));
       crailNode = store.create(crailPath, CrailNodeType.OBJECT, CrailStorageClass.DEFAULT,
                                CrailLocationClass.DEFAULT, false).get();
       filterAction = crailNode.asObject().getProxy();
@@ -99,10 +108,9 @@ public class SingleWordCount {
     }
 
     InputStream is = filterAction.getInputStream();
-    Stream<String> lines = new BufferedReader(new InputStreamReader(is)).lines();
 
     long time1 = System.currentTimeMillis();
-    Map<String, Long> words = countWordsLocal(lines);
+    WordCountMap words = countWordsLocal(is, THREADS);
     long time2 = System.currentTimeMillis();
     List<Map.Entry<String, Long>> top10 = getTop10(words);
     System.out.println(top10);
@@ -129,16 +137,15 @@ public class SingleWordCount {
     CrailFile crailFile = crailNode.asFile();
 
     CrailBufferedInputStream crailBufferedInputStream = crailFile.getBufferedInputStream(crailNode.getCapacity());
-    Stream<String> lines = new BufferedReader(new InputStreamReader(crailBufferedInputStream)).lines();
     long time1 = System.currentTimeMillis();
-    Map<String, Long> words = countWordsLocal(lines);
+    // closes the stream
+    WordCountMap words = countWordsLocal(crailBufferedInputStream, THREADS);
     long time2 = System.currentTimeMillis();
     List<Map.Entry<String, Long>> top10 = getTop10(words);
     System.out.println(top10);
 
     System.out.println("Elapsed: " + (time2 - time1) + " ms");
 
-    crailBufferedInputStream.close();
     store.close();
   }
 
@@ -148,9 +155,9 @@ public class SingleWordCount {
    * @throws IOException
    */
   public static void runLocal() throws IOException {
-    Stream<String> lines = Files.lines(Paths.get(FILENAME));
+    InputStream in = Files.newInputStream(Paths.get(FILENAME));
     long time1 = System.currentTimeMillis();
-    Map<String, Long> words = countWordsLocal(lines);
+    WordCountMap words = countWordsLocal(in, THREADS);
     long time2 = System.currentTimeMillis();
     List<Map.Entry<String, Long>> top10 = getTop10(words);
     System.out.println(top10);
@@ -158,18 +165,82 @@ public class SingleWordCount {
     System.out.println("Elapsed: " + (time2 - time1) + " ms");
   }
 
-  public static Map<String, Long> countWordsLocal(Stream<String> lines) {
-    return lines.parallel()
-                .flatMap(line -> Stream.of(line.toLowerCase().split("\\W+"))
-                                       .filter(w -> !w.isEmpty()))
-                .collect(Collectors.groupingByConcurrent(Function.identity(), Collectors.counting()));
+  /**
+   * Count the words of a text stream, scanning its bytes with a
+   * {@link WordTokenizer}. Closes the stream.
+   */
+  public static WordCountMap countWordsLocal(InputStream in) throws IOException {
+    WordCountMap words = new WordCountMap();
+    new WordTokenizer(in).forEachWord(words::increment);
+    return words;
+  }
+
+  /**
+   * Count the words of a text stream on <code>threads</code> threads. The
+   * stream is read in chunks of about {@link #CHUNK_SIZE} bytes that end
+   * between words, each chunk is counted into its own {@link WordCountMap},
+   * and the maps are merged in order, keeping at most two chunks per thread
+   * in memory. Closes the stream.
+   */
+  public static WordCountMap countWordsLocal(InputStream in, int threads) throws IOException {
+    if (threads <= 1) {
+      return countWordsLocal(in);
+    }
+    WordCountMap words = new WordCountMap();
+    ExecutorService es = Executors.newFixedThreadPool(threads);
+    Deque<Future<WordCountMap>> counts = new ArrayDeque<>();
+    try {
+      byte[] chunk = new byte[CHUNK_SIZE];
+      int filled = 0;
+      int read = 0;
+      while (read >= 0) {
+        read = in.read(chunk, filled, chunk.length - filled);
+        if (read > 0) {
+          filled += read;
+        }
+        if (read >= 0 && filled < chunk.length) {
+          continue;
+        }
+        // cut after the last complete word, the rest starts the next chunk
+        int end = filled;
+        while (read >= 0 && end > 0 && WordTokenizer.isWordByte(chunk[end - 1])) {
+          end--;
+        }
+        if (read >= 0 && end == 0) {
+          chunk = Arrays.copyOf(chunk, chunk.length * 2);
+          continue;
+        }
+        byte[] full = chunk;
+        int length = end;
+        counts.add(es.submit(() -> {
+          WordCountMap chunkWords = new WordCountMap();
+          WordTokenizer.tokenize(full, 0, length, chunkWords::increment);
+          return chunkWords;
+        }));
+        chunk = new byte[Math.max(CHUNK_SIZE, 2 * (filled - end))];
+        System.arraycopy(full, end, chunk, 0, filled - end);
+        filled -= end;
+        while (counts.size() > 2 * threads) {
+          words.merge(counts.poll().get());
+        }
+      }
+      while (!counts.isEmpty()) {
+        words.merge(counts.poll().get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while counting words");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      es.shutdownNow();
+      in.close();
+    }
+    return words;
   }
 
-  private static List<Map.Entry<String, Long>> getTop10(Map<String, Long> words) {
-    return words.entrySet().stream()
-                .sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-                .limit(10)
-                .collect(Collectors.toList());
+  private static List<Map.Entry<String, Long>> getTop10(WordCountMap words) {
+    return words.topK(10);
   }
 
   /**
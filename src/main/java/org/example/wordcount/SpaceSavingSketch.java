@@ -0,0 +1,311 @@
+package org.example.wordcount;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Approximate counts of the most frequent words in bounded memory, with the
+ * SpaceSaving algorithm.
+ * <p>
+ * At most <code>capacity</code> words are monitored, in a min-heap by count.
+ * A word that is not monitored replaces the least frequent one, and starts
+ * from its count, which becomes the word's error. So a monitored count
+ * over-estimates the true count by at most its error, and any word that
+ * occurs more than (total / capacity) times is monitored.
+ * <p>
+ * Sketches can be merged, e.g. up a tree of {@link MapMerger}s. A word may
+ * be missing from a merged sketch, or under-counted there, by up to the
+ * smallest count it sent plus its own slack, which are added to the slack: a
+ * true count is within <code>[count - error, count + slack]</code>.
+ * <p>
+ * Not thread-safe, except through {@link #newWriter()} and the
+ * <code>synchronized</code> methods.
+ */
+public class SpaceSavingSketch {
+  private static final int MAGIC = 0x53;
+  private static final int BATCH_WORDS = 4096;
+
+  private final int capacity;
+  private final Map<String, Integer> positions;
+  private final String[] words;
+  private final long[] counts;
+  private final long[] errors;
+  private int size;
+  private long slack;
+
+  /**
+   * A frequent word with its estimated count and bounds.
+   */
+  public static class HeavyHitter {
+    private final String word;
+    private final long count;
+    private final long error;
+    private final long slack;
+
+    public HeavyHitter(String word, long count, long error, long slack) {
+      this.word = word;
+      this.count = count;
+      this.error = error;
+      this.slack = slack;
+    }
+
+    public String getWord() {
+      return word;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getLowerBound() {
+      return count - error;
+    }
+
+    public long getUpperBound() {
+      return count + slack;
+    }
+
+    @Override
+    public String toString() {
+      return word + "=" + count + " [" + getLowerBound() + ", " + getUpperBound() + "]";
+    }
+  }
+
+  /**
+   * @param capacity Number of monitored words, a few times the number of
+   *                 words wanted from {@link #top(int)}.
+   */
+  public SpaceSavingSketch(int capacity) {
+    this.capacity = capacity;
+    positions = new HashMap<>(capacity * 2);
+    words = new String[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+  }
+
+  /**
+   * Add <code>count</code> occurrences of <code>word</code>, whose count may
+   * already be over-estimated by <code>error</code>.
+   */
+  public synchronized void add(String word, long count, long error) {
+    Integer pos = positions.get(word);
+    if (pos != null) {
+      counts[pos] += count;
+      errors[pos] += error;
+      siftDown(pos);
+    } else if (size < capacity) {
+      words[size] = word;
+      counts[size] = count;
+      errors[size] = error;
+      positions.put(word, size);
+      siftUp(size++);
+    } else {
+      // replace the least frequent word, which may have been the new one
+      long min = counts[0];
+      positions.remove(words[0]);
+      words[0] = word;
+      counts[0] = min + count;
+      errors[0] = min + error;
+      positions.put(word, 0);
+      siftDown(0);
+    }
+  }
+
+  /**
+   * @return The <code>k</code> most frequent monitored words, most frequent
+   *         first.
+   */
+  public synchronized List<HeavyHitter> top(int k) {
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+    List<HeavyHitter> top = new ArrayList<>(Math.min(k, size));
+    for (int i = 0; i < Math.min(k, size); i++) {
+      int pos = order[i];
+      top.add(new HeavyHitter(words[pos], counts[pos], errors[pos], slack));
+    }
+    return top;
+  }
+
+  /**
+   * Write the <code>k</code> most frequent words with their errors: a magic
+   * byte, the slack, the bound on the words left out, the number of words,
+   * then the length, bytes, count and error of each word. Flushes but does
+   * not close the stream.
+   */
+  public void writeTop(int k, OutputStream out) throws IOException {
+    List<HeavyHitter> top;
+    long outSlack;
+    long missing = 0;
+    synchronized (this) {
+      top = top(k);
+      outSlack = slack;
+      // words left out, beyond the top k or evicted, may have occurred up to
+      // the smallest count written
+      if (!top.isEmpty() && (k < size || size == capacity)) {
+        missing = top.get(top.size() - 1).getCount();
+      }
+    }
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeByte(MAGIC);
+    data.writeLong(outSlack);
+    data.writeLong(missing);
+    data.writeInt(top.size());
+    for (HeavyHitter hitter : top) {
+      byte[] bytes = hitter.word.getBytes(StandardCharsets.UTF_8);
+      data.writeInt(bytes.length);
+      data.write(bytes);
+      data.writeLong(hitter.count);
+      data.writeLong(hitter.error);
+    }
+    data.flush();
+  }
+
+  /**
+   * Read the words written by {@link #writeTop}. Does not close the stream.
+   */
+  public static List<HeavyHitter> readTop(InputStream in) throws IOException {
+    return readTop(in, new long[1]);
+  }
+
+  /**
+   * @param missing Set to the bound on the counts of the words left out.
+   */
+  private static List<HeavyHitter> readTop(InputStream in, long[] missing) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readUnsignedByte() != MAGIC) {
+      throw new StreamCorruptedException("Not a sketch");
+    }
+    long slack = data.readLong();
+    missing[0] = data.readLong();
+    int n = data.readInt();
+    List<HeavyHitter> top = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      byte[] bytes = new byte[data.readInt()];
+      data.readFully(bytes);
+      long count = data.readLong();
+      long error = data.readLong();
+      top.add(new HeavyHitter(new String(bytes, StandardCharsets.UTF_8), count, error, slack));
+    }
+    return top;
+  }
+
+  /**
+   * Read a sketch written by {@link #writeTop}, or a map in any
+   * {@link WordCountCodec.Format}, and add its counts. Does not close the
+   * stream.
+   */
+  public void mergeFrom(InputStream in) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in, 1);
+    int first = pushback.read();
+    if (first < 0) {
+      throw new EOFException("No map in stream");
+    }
+    pushback.unread(first);
+    if (first != MAGIC) {
+      Writer writer = newWriter();
+      WordCountCodec.mergeFrom(pushback, writer);
+      writer.flush();
+      return;
+    }
+    long[] missing = new long[1];
+    List<HeavyHitter> top = readTop(pushback, missing);
+    synchronized (this) {
+      for (HeavyHitter hitter : top) {
+        add(hitter.word, hitter.count, hitter.error);
+      }
+      // a word may have been under-counted there, or left out of it
+      slack += (top.isEmpty() ? 0 : top.get(0).slack) + missing[0];
+    }
+  }
+
+  /**
+   * @return A writer for one thread. Its counts are only added after
+   *         {@link Writer#flush()}.
+   */
+  public Writer newWriter() {
+    return new Writer();
+  }
+
+  /**
+   * Sums the words of one thread in a small exact map, and adds them to the
+   * sketch in one locked batch when the map is full. Not thread-safe.
+   */
+  public class Writer implements WordCountCodec.CountSink {
+    private final WordCountMap batch = new WordCountMap(BATCH_WORDS);
+
+    @Override
+    public void add(byte[] buffer, int offset, int length, long count) {
+      batch.add(buffer, offset, length, count);
+      if (batch.size() >= BATCH_WORDS) {
+        flush();
+      }
+    }
+
+    /**
+     * Add all buffered words to the sketch.
+     */
+    public void flush() {
+      synchronized (SpaceSavingSketch.this) {
+        for (int i = 0; i < batch.size(); i++) {
+          SpaceSavingSketch.this.add(batch.word(i), batch.count(i), 0);
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  private void siftUp(int pos) {
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (counts[parent] <= counts[pos]) {
+        break;
+      }
+      swap(pos, parent);
+      pos = parent;
+    }
+  }
+
+  private void siftDown(int pos) {
+    int half = size >>> 1;
+    while (pos < half) {
+      int child = 2 * pos + 1;
+      if (child + 1 < size && counts[child + 1] < counts[child]) {
+        child++;
+      }
+      if (counts[child] >= counts[pos]) {
+        break;
+      }
+      swap(pos, child);
+      pos = child;
+    }
+  }
+
+  private void swap(int a, int b) {
+    String word = words[a];
+    words[a] = words[b];
+    words[b] = word;
+    long count = counts[a];
+    counts[a] = counts[b];
+    counts[b] = count;
+    long error = errors[a];
+    errors[a] = errors[b];
+    errors[b] = error;
+    positions.put(words[a], a);
+    positions.put(words[b], b);
+  }
+}
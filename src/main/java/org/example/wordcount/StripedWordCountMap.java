@@ -0,0 +1,124 @@
+package org.example.wordcount;
+
+/**
+ * Thread-safe word counts, split by word hash into stripes that are each a
+ * {@link WordCountMap} with its own lock.
+ * <p>
+ * Each writing thread adds its words through its own {@link Writer}, which
+ * collects them per stripe and merges a stripe's batch under the stripe lock
+ * once it holds {@link #BATCH_WORDS} distinct words. Writers therefore take a
+ * lock once per batch rather than per word, and only contend when they flush
+ * the same stripe at the same time.
+ */
+public class StripedWordCountMap {
+  public static final int MAX_STRIPES = 256;
+  private static final int BATCH_WORDS = 512;
+
+  private final WordCountMap[] stripes;
+  private final int mask;
+
+  /**
+   * @param stripes Number of stripes, rounded down to a power of two and at
+   *                most {@link #MAX_STRIPES}.
+   */
+  public StripedWordCountMap(int stripes) {
+    int n = Integer.highestOneBit(Math.min(Math.max(stripes, 1), MAX_STRIPES));
+    this.stripes = new WordCountMap[n];
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new WordCountMap();
+    }
+    this.mask = n - 1;
+  }
+
+  // the stripe tables use the low bits of the hash, stripes take high bits
+  private int stripe(int hash) {
+    return ((hash * 0x9e3779b9) >>> 24) & mask;
+  }
+
+  /**
+   * @return A writer for one thread. Its counts are only visible after
+   *         {@link Writer#flush()}.
+   */
+  public Writer newWriter() {
+    return new Writer();
+  }
+
+  /**
+   * Add all the counts of <code>other</code>.
+   */
+  public void merge(WordCountMap other) {
+    Writer writer = newWriter();
+    byte[] arena = other.arena();
+    for (int i = 0; i < other.size(); i++) {
+      writer.add(arena, other.wordOffset(i), other.wordLength(i), other.count(i));
+    }
+    writer.flush();
+  }
+
+  /**
+   * @return A copy of all the counts flushed so far, in one map.
+   */
+  public WordCountMap snapshot() {
+    WordCountMap words = new WordCountMap(size());
+    for (WordCountMap stripe : stripes) {
+      synchronized (stripe) {
+        words.merge(stripe);
+      }
+    }
+    return words;
+  }
+
+  /**
+   * @return Number of distinct words flushed so far.
+   */
+  public int size() {
+    int size = 0;
+    for (WordCountMap stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Buffers the words of one thread per stripe. Not thread-safe.
+   */
+  public class Writer implements WordCountCodec.CountSink {
+    private final WordCountMap[] pending = new WordCountMap[stripes.length];
+
+    @Override
+    public void add(byte[] buffer, int offset, int length, long count) {
+      int hash = WordCountMap.hash(buffer, offset, length);
+      int stripe = stripe(hash);
+      WordCountMap batch = pending[stripe];
+      if (batch == null) {
+        batch = new WordCountMap(BATCH_WORDS);
+        pending[stripe] = batch;
+      }
+      batch.add(buffer, offset, length, hash, count);
+      if (batch.size() >= BATCH_WORDS) {
+        flush(stripe);
+      }
+    }
+
+    /**
+     * Merge all buffered words into the stripes.
+     */
+    public void flush() {
+      for (int stripe = 0; stripe < pending.length; stripe++) {
+        if (pending[stripe] != null && pending[stripe].size() > 0) {
+          flush(stripe);
+        }
+      }
+    }
+
+    private void flush(int stripe) {
+      WordCountMap target = stripes[stripe];
+      synchronized (target) {
+        target.merge(pending[stripe]);
+      }
+      pending[stripe].clear();
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package org.example.wordcount;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Wire formats for the {@link WordCountMap}s exchanged with a
+ * {@link MapMerger}.
+ * <p>
+ * The binary formats start with a magic byte and a format byte, then the
+ * number of words as a varint, then for each word its length as a varint,
+ * its UTF-8 bytes and its count as a varint. In the front-coded format the
+ * words are sorted and each one is preceded by the length of the prefix it
+ * shares with the previous word, and only the rest of its bytes are sent.
+ * Java serialization streams start with another magic number, so a reader
+ * can tell all formats apart from the first byte.
+ * <p>
+ * Binary maps are decoded straight into the target map, word by word,
+ * without building the incoming map.
+ */
+public class WordCountCodec {
+  private static final int MAGIC = 0x57;
+  private static final int BUFFER = 64 * 1024;
+
+  /**
+   * Receives the words of a decoded map, as slices of a buffer only valid
+   * during the call.
+   */
+  @FunctionalInterface
+  public interface CountSink {
+    void add(byte[] buffer, int offset, int length, long count);
+  }
+
+  public enum Format {
+    /** Java serialization of the map. */
+    JAVA,
+    /** Varint lengths and counts, words in map order. */
+    VARINT,
+    /** As {@link #VARINT}, with sorted and front-coded words. */
+    FRONT_CODED
+  }
+
+  /**
+   * Write <code>words</code> to <code>out</code> in <code>format</code>.
+   * Flushes but does not close the stream.
+   */
+  public static void write(WordCountMap words, OutputStream out, Format format) throws IOException {
+    if (format == Format.JAVA) {
+      ObjectOutputStream oos = new ObjectOutputStream(out);
+      oos.writeObject(words);
+      oos.flush();
+      return;
+    }
+    boolean frontCoded = format == Format.FRONT_CODED;
+    Encoder encoder = new Encoder(out);
+    encoder.writeByte(MAGIC);
+    encoder.writeByte(format.ordinal());
+    encoder.writeVarint(words.size());
+
+    byte[] arena = words.arena();
+    int[] order = frontCoded ? words.sortedWords() : null;
+    int previousOffset = 0;
+    int previousLength = 0;
+    for (int n = 0; n < words.size(); n++) {
+      int i = frontCoded ? order[n] : n;
+      int offset = words.wordOffset(i);
+      int length = words.wordLength(i);
+      int shared = 0;
+      if (frontCoded) {
+        int max = Math.min(length, previousLength);
+        while (shared < max && arena[offset + shared] == arena[previousOffset + shared]) {
+          shared++;
+        }
+        encoder.writeVarint(shared);
+        previousOffset = offset;
+        previousLength = length;
+      }
+      encoder.writeVarint(length - shared);
+      encoder.write(arena, offset + shared, length - shared);
+      encoder.writeVarint(words.count(i));
+    }
+    encoder.flush();
+  }
+
+  /**
+   * Read a map in any format from <code>in</code> and pass its counts to
+   * <code>target</code>, e.g. <code>WordCountMap::add</code>. Does not close
+   * the stream.
+   *
+   * @return The format of the map read.
+   */
+  public static Format mergeFrom(InputStream in, CountSink target) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in, 1);
+    int first = pushback.read();
+    if (first < 0) {
+      throw new EOFException("No map in stream");
+    }
+    if (first != MAGIC) {
+      pushback.unread(first);
+      try {
+        WordCountMap words = (WordCountMap) new ObjectInputStream(pushback).readObject();
+        byte[] arena = words.arena();
+        for (int i = 0; i < words.size(); i++) {
+          target.add(arena, words.wordOffset(i), words.wordLength(i), words.count(i));
+        }
+      } catch (ClassNotFoundException | ClassCastException e) {
+        throw new StreamCorruptedException("Object sent is not a WordCountMap: " + e);
+      }
+      return Format.JAVA;
+    }
+
+    Decoder decoder = new Decoder(pushback);
+    int formatByte = decoder.readByte();
+    if (formatByte != Format.VARINT.ordinal() && formatByte != Format.FRONT_CODED.ordinal()) {
+      throw new StreamCorruptedException("Unknown map format " + formatByte);
+    }
+    Format format = Format.values()[formatByte];
+    boolean frontCoded = format == Format.FRONT_CODED;
+    long size = decoder.readVarint();
+    // the current word, the prefix of the next one stays in place
+    byte[] word = new byte[64];
+    for (long n = 0; n < size; n++) {
+      int shared = frontCoded ? (int) decoder.readVarint() : 0;
+      int rest = (int) decoder.readVarint();
+      if (shared + rest > word.length) {
+        byte[] bigger = new byte[Math.max(word.length * 2, shared + rest)];
+        System.arraycopy(word, 0, bigger, 0, shared);
+        word = bigger;
+      }
+      decoder.readFully(word, shared, rest);
+      target.add(word, 0, shared + rest, decoder.readVarint());
+    }
+    return format;
+  }
+
+  /**
+   * Read a map in any format from <code>in</code>. Does not close the stream.
+   */
+  public static WordCountMap read(InputStream in) throws IOException {
+    WordCountMap words = new WordCountMap();
+    mergeFrom(in, words::add);
+    return words;
+  }
+
+  /**
+   * Buffers writes to a stream, avoiding a call per byte.
+   */
+  private static class Encoder {
+    private final OutputStream out;
+    private final byte[] buf = new byte[BUFFER];
+    private int pos;
+
+    Encoder(OutputStream out) {
+      this.out = out;
+    }
+
+    void writeByte(int b) throws IOException {
+      if (pos == buf.length) {
+        drain();
+      }
+      buf[pos++] = (byte) b;
+    }
+
+    void writeVarint(long value) throws IOException {
+      if (buf.length - pos < 10) {
+        drain();
+      }
+      while ((value & ~0x7fL) != 0) {
+        buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+    }
+
+    void write(byte[] bytes, int offset, int length) throws IOException {
+      if (buf.length - pos < length) {
+        drain();
+        if (length > buf.length) {
+          out.write(bytes, offset, length);
+          return;
+        }
+      }
+      System.arraycopy(bytes, offset, buf, pos, length);
+      pos += length;
+    }
+
+    void flush() throws IOException {
+      drain();
+      out.flush();
+    }
+
+    private void drain() throws IOException {
+      out.write(buf, 0, pos);
+      pos = 0;
+    }
+  }
+
+  /**
+   * Buffers reads from a stream, avoiding a call per byte.
+   */
+  private static class Decoder {
+    private final InputStream in;
+    private final byte[] buf = new byte[BUFFER];
+    private int pos;
+    private int limit;
+
+    Decoder(InputStream in) {
+      this.in = in;
+    }
+
+    int readByte() throws IOException {
+      if (pos == limit && !refill()) {
+        throw new EOFException("Truncated map");
+      }
+      return buf[pos++] & 0xff;
+    }
+
+    long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new StreamCorruptedException("Malformed varint");
+    }
+
+    void readFully(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (pos == limit && !refill()) {
+          throw new EOFException("Truncated map");
+        }
+        int n = Math.min(length, limit - pos);
+        System.arraycopy(buf, pos, bytes, offset, n);
+        pos += n;
+        offset += n;
+        length -= n;
+      }
+    }
+
+    private boolean refill() throws IOException {
+      int n = in.read(buf, 0, buf.length);
+      if (n <= 0) {
+        return false;
+      }
+      pos = 0;
+      limit = n;
+      return true;
+    }
+  }
+}
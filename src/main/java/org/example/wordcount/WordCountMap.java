@@ -0,0 +1,335 @@
+package org.example.wordcount;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Word counts keyed by the bytes of the words, e.g. as given by a
+ * {@link WordTokenizer}.
+ * <p>
+ * Words are numbered in insertion order. Their bytes are appended to one
+ * arena, and their counts and hashes are kept in primitive arrays indexed by
+ * that number. An open-addressing table with linear probing maps a word to
+ * its number. A distinct word costs its bytes plus about 24 bytes, against a
+ * String, a boxed Long and a map node per word in a HashMap. Strings are only
+ * created for the words returned by {@link #topK(int)} or {@link #word(int)}.
+ * Not thread-safe.
+ */
+public class WordCountMap implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final int INITIAL_WORDS = 1024;
+
+  // word number + 1 for each table slot, 0 when empty
+  private transient int[] table;
+  private transient int[] hashes;
+  // word i is arena[offsets[i], offsets[i + 1])
+  private transient int[] offsets;
+  private transient long[] counts;
+  private transient byte[] arena;
+  private transient int size;
+
+  public WordCountMap() {
+    this(INITIAL_WORDS);
+  }
+
+  /**
+   * @param words Expected number of distinct words, the map grows past it.
+   */
+  public WordCountMap(int words) {
+    init(Math.max(words, 1), words * 8);
+  }
+
+  private void init(int words, int arenaBytes) {
+    table = new int[Integer.highestOneBit(Math.max(words, 16) * 2) * 2];
+    hashes = new int[words];
+    offsets = new int[words + 1];
+    counts = new long[words];
+    arena = new byte[Math.max(arenaBytes, 64)];
+    size = 0;
+  }
+
+  /**
+   * Count one more occurrence of the word <code>buffer[offset, offset + length)</code>.
+   */
+  public void increment(byte[] buffer, int offset, int length) {
+    add(buffer, offset, length, 1);
+  }
+
+  /**
+   * Add <code>count</code> occurrences of the word
+   * <code>buffer[offset, offset + length)</code>.
+   */
+  public void add(byte[] buffer, int offset, int length, long count) {
+    add(buffer, offset, length, hash(buffer, offset, length), count);
+  }
+
+  /**
+   * As {@link #add(byte[], int, int, long)}, with the {@link #hash} of the word
+   * already known.
+   */
+  void add(byte[] buffer, int offset, int length, int hash, long count) {
+    int mask = table.length - 1;
+    for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+      int word = table[slot] - 1;
+      if (word < 0) {
+        table[slot] = append(buffer, offset, length, hash, count) + 1;
+        if (size * 2 > table.length) {
+          rehash(table.length * 2);
+        }
+        return;
+      }
+      if (hashes[word] == hash && equals(word, buffer, offset, length)) {
+        counts[word] += count;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Add all the counts of <code>other</code>.
+   */
+  public void merge(WordCountMap other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.arena, other.offsets[i], other.offsets[i + 1] - other.offsets[i], other.hashes[i], other.counts[i]);
+    }
+  }
+
+  /**
+   * Remove all words, keeping the allocated space.
+   */
+  public void clear() {
+    Arrays.fill(table, 0);
+    size = 0;
+  }
+
+  /**
+   * @return The count of <code>word</code>, 0 if it was never seen.
+   */
+  public long get(String word) {
+    byte[] bytes = word.getBytes(StandardCharsets.US_ASCII);
+    int hash = hash(bytes, 0, bytes.length);
+    int mask = table.length - 1;
+    for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+      int i = table[slot] - 1;
+      if (hashes[i] == hash && equals(i, bytes, 0, bytes.length)) {
+        return counts[i];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return Number of distinct words.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The word with number <code>i</code>, in insertion order.
+   */
+  public String word(int i) {
+    return new String(arena, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.US_ASCII);
+  }
+
+  public long count(int i) {
+    return counts[i];
+  }
+
+  /**
+   * @return The bytes of all words: word <code>i</code> is
+   *         <code>[wordOffset(i), wordOffset(i) + wordLength(i))</code>.
+   */
+  byte[] arena() {
+    return arena;
+  }
+
+  int wordOffset(int i) {
+    return offsets[i];
+  }
+
+  int wordLength(int i) {
+    return offsets[i + 1] - offsets[i];
+  }
+
+  /**
+   * @return The word numbers ordered by the bytes of the words.
+   */
+  int[] sortedWords() {
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, this::compareWords);
+    int[] sorted = new int[size];
+    for (int i = 0; i < size; i++) {
+      sorted[i] = order[i];
+    }
+    return sorted;
+  }
+
+  /**
+   * @return The <code>k</code> most frequent words, most frequent first.
+   */
+  public List<Map.Entry<String, Long>> topK(int k) {
+    // min-heap of word numbers by count: the root is the least frequent kept word
+    int[] heap = new int[Math.min(k, size)];
+    int heapSize = 0;
+    for (int i = 0; i < size; i++) {
+      if (heapSize < heap.length) {
+        heap[heapSize] = i;
+        siftUp(heap, heapSize++);
+      } else if (heap.length > 0 && counts[i] > counts[heap[0]]) {
+        heap[0] = i;
+        siftDown(heap, heapSize);
+      }
+    }
+    List<Map.Entry<String, Long>> top = new ArrayList<>(heapSize);
+    while (heapSize > 0) {
+      int i = heap[0];
+      heap[0] = heap[--heapSize];
+      siftDown(heap, heapSize);
+      top.add(new AbstractMap.SimpleImmutableEntry<>(word(i), counts[i]));
+    }
+    Collections.reverse(top);
+    return top;
+  }
+
+  private void siftUp(int[] heap, int pos) {
+    int item = heap[pos];
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (counts[heap[parent]] <= counts[item]) {
+        break;
+      }
+      heap[pos] = heap[parent];
+      pos = parent;
+    }
+    heap[pos] = item;
+  }
+
+  private void siftDown(int[] heap, int heapSize) {
+    if (heapSize == 0) {
+      return;
+    }
+    int pos = 0;
+    int item = heap[0];
+    int half = heapSize >>> 1;
+    while (pos < half) {
+      int child = 2 * pos + 1;
+      if (child + 1 < heapSize && counts[heap[child + 1]] < counts[heap[child]]) {
+        child++;
+      }
+      if (counts[heap[child]] >= counts[item]) {
+        break;
+      }
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = item;
+  }
+
+  private int append(byte[] buffer, int offset, int length, int hash, long count) {
+    if (size == counts.length) {
+      int capacity = counts.length * 2;
+      hashes = Arrays.copyOf(hashes, capacity);
+      offsets = Arrays.copyOf(offsets, capacity + 1);
+      counts = Arrays.copyOf(counts, capacity);
+    }
+    int end = offsets[size];
+    if (end + length > arena.length) {
+      arena = Arrays.copyOf(arena, Math.max(arena.length * 2, end + length));
+    }
+    System.arraycopy(buffer, offset, arena, end, length);
+    hashes[size] = hash;
+    counts[size] = count;
+    offsets[size + 1] = end + length;
+    return size++;
+  }
+
+  private int compareWords(int a, int b) {
+    int lengthA = wordLength(a);
+    int lengthB = wordLength(b);
+    int length = Math.min(lengthA, lengthB);
+    for (int i = 0; i < length; i++) {
+      int diff = (arena[offsets[a] + i] & 0xff) - (arena[offsets[b] + i] & 0xff);
+      if (diff != 0) {
+        return diff;
+      }
+    }
+    return lengthA - lengthB;
+  }
+
+  private boolean equals(int word, byte[] buffer, int offset, int length) {
+    int start = offsets[word];
+    if (offsets[word + 1] - start != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (arena[start + i] != buffer[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash(int capacity) {
+    table = new int[capacity];
+    int mask = table.length - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hashes[i] & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = i + 1;
+    }
+  }
+
+  static int hash(byte[] buffer, int offset, int length) {
+    int hash = 0x811c9dc5;
+    for (int i = offset; i < offset + length; i++) {
+      hash = (hash ^ buffer[i]) * 0x01000193;
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  // serialized as the used part of the arena, offsets and counts; the table is rebuilt
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size);
+    out.writeInt(offsets[size]);
+    out.write(arena, 0, offsets[size]);
+    for (int i = 1; i <= size; i++) {
+      out.writeInt(offsets[i]);
+    }
+    for (int i = 0; i < size; i++) {
+      out.writeLong(counts[i]);
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int words = in.readInt();
+    int arenaBytes = in.readInt();
+    init(Math.max(words, 1), arenaBytes);
+    in.readFully(arena, 0, arenaBytes);
+    for (int i = 1; i <= words; i++) {
+      offsets[i] = in.readInt();
+    }
+    for (int i = 0; i < words; i++) {
+      counts[i] = in.readLong();
+      hashes[i] = hash(arena, offsets[i], offsets[i + 1] - offsets[i]);
+    }
+    size = words;
+    rehash(table.length);
+  }
+}
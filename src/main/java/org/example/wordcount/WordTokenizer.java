@@ -0,0 +1,180 @@
+package org.example.wordcount;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a byte stream into words without decoding it into Strings.
+ * <p>
+ * Words are the runs of ASCII letters, digits and '_', lowercased, as given
+ * by <code>line.toLowerCase().split("\\W+")</code> (any other byte, including
+ * every byte of a multi-byte UTF-8 character, separates words). The stream is
+ * read in large chunks, words are lowercased in place and handed to a
+ * {@link WordSink} as slices of the chunk, only valid during the call.
+ */
+public class WordTokenizer {
+  private static final int DEFAULT_BUFFER = 256 * 1024;
+  private static final boolean[] WORD_BYTE = new boolean[256];
+
+  static {
+    for (int c = 'a'; c <= 'z'; c++) {
+      WORD_BYTE[c] = true;
+      WORD_BYTE[c - 'a' + 'A'] = true;
+    }
+    for (int c = '0'; c <= '9'; c++) {
+      WORD_BYTE[c] = true;
+    }
+    WORD_BYTE['_'] = true;
+  }
+
+  /**
+   * Receives the words of a stream, as slices of a buffer.
+   */
+  @FunctionalInterface
+  public interface WordSink {
+    void word(byte[] buffer, int offset, int length);
+  }
+
+  /**
+   * Receives the lines of a stream without their separator, as slices of a
+   * buffer.
+   */
+  @FunctionalInterface
+  public interface LineSink {
+    void line(byte[] buffer, int offset, int length);
+  }
+
+  private final InputStream in;
+  private byte[] buf;
+
+  public WordTokenizer(InputStream in) {
+    this(in, DEFAULT_BUFFER);
+  }
+
+  public WordTokenizer(InputStream in, int bufferSize) {
+    this.in = in;
+    this.buf = new byte[bufferSize];
+  }
+
+  /**
+   * Pass every word of the stream to <code>sink</code>, then close the
+   * stream.
+   *
+   * @return Number of words.
+   */
+  public long forEachWord(WordSink sink) throws IOException {
+    long words = 0;
+    int filled = 0;
+    int read;
+    while ((read = fill(filled)) >= 0) {
+      filled += read;
+      // keep the last word for the next chunk, it may continue there
+      int end = filled;
+      while (end > 0 && WORD_BYTE[buf[end - 1] & 0xff]) {
+        end--;
+      }
+      if (end == 0) {
+        continue;
+      }
+      words += tokenize(buf, 0, end, sink);
+      filled = carry(end, filled);
+    }
+    words += tokenize(buf, 0, filled, sink);
+    in.close();
+    return words;
+  }
+
+  /**
+   * Pass every line of the stream to <code>sink</code>, like
+   * <code>BufferedReader.lines()</code> (<code>\n</code> or <code>\r\n</code>
+   * separators), then close the stream.
+   *
+   * @return Number of lines.
+   */
+  public long forEachLine(LineSink sink) throws IOException {
+    long lines = 0;
+    int filled = 0;
+    int read;
+    while ((read = fill(filled)) >= 0) {
+      int scanned = filled;
+      filled += read;
+      int start = 0;
+      for (int i = scanned; i < filled; i++) {
+        if (buf[i] == '\n') {
+          int end = i > start && buf[i - 1] == '\r' ? i - 1 : i;
+          sink.line(buf, start, end - start);
+          lines++;
+          start = i + 1;
+        }
+      }
+      filled = carry(start, filled);
+    }
+    if (filled > 0) {
+      sink.line(buf, 0, filled);
+      lines++;
+    }
+    in.close();
+    return lines;
+  }
+
+  /**
+   * @return Whether <code>b</code> is part of a word.
+   */
+  public static boolean isWordByte(byte b) {
+    return WORD_BYTE[b & 0xff];
+  }
+
+  /**
+   * Lowercase the words of <code>buffer[from, to)</code> in place and pass
+   * them to <code>sink</code>.
+   *
+   * @return Number of words.
+   */
+  public static int tokenize(byte[] buffer, int from, int to, WordSink sink) {
+    int words = 0;
+    int i = from;
+    while (i < to) {
+      while (i < to && !WORD_BYTE[buffer[i] & 0xff]) {
+        i++;
+      }
+      int start = i;
+      while (i < to && WORD_BYTE[buffer[i] & 0xff]) {
+        byte b = buffer[i];
+        if (b >= 'A' && b <= 'Z') {
+          buffer[i] = (byte) (b + ('a' - 'A'));
+        }
+        i++;
+      }
+      if (i > start) {
+        sink.word(buffer, start, i - start);
+        words++;
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Read more bytes after the first <code>filled</code> ones, growing the
+   * buffer if it is full.
+   *
+   * @return Bytes read, or -1 at the end of the stream.
+   */
+  private int fill(int filled) throws IOException {
+    if (filled == buf.length) {
+      byte[] bigger = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, bigger, 0, filled);
+      buf = bigger;
+    }
+    return in.read(buf, filled, buf.length - filled);
+  }
+
+  /**
+   * Move the unprocessed bytes <code>[from, filled)</code> to the front.
+   *
+   * @return Bytes now in the buffer.
+   */
+  private int carry(int from, int filled) {
+    System.arraycopy(buf, from, buf, 0, filled - from);
+    return filled - from;
+  }
+}